@@ -0,0 +1,77 @@
+package benchmark;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Game states of roughly a given size, shaped like getCommunicationState() output. Consecutive
+ * states differ in a handful of fields, the way states after single commands do, so delta and
+ * compression numbers aren't flattered by identical messages.
+ */
+public class CannedStates {
+    private static final int VARIANTS = 16;
+    private static final String[] CARDS = {"Strike_R", "Defend_R", "Bash", "Anger", "Cleave", "Pommel Strike", "Shrug It Off", "Iron Wave"};
+
+    private final String[] states = new String[VARIANTS];
+    private int next = 0;
+
+    public CannedStates(int size) {
+        for (int i = 0; i < VARIANTS; i++) {
+            states[i] = build(size, i);
+        }
+    }
+
+    public synchronized String next() {
+        String state = states[next];
+        next = (next + 1) % VARIANTS;
+        return state;
+    }
+
+    private static String build(int size, int variant) {
+        JsonObject gameState = new JsonObject();
+        gameState.addProperty("screen_type", "NONE");
+        gameState.addProperty("floor", 10 + variant);
+        gameState.addProperty("current_hp", 80 - variant % 10);
+        gameState.addProperty("max_hp", 80);
+        gameState.addProperty("gold", 99 + variant * 7);
+
+        JsonArray hand = new JsonArray();
+        for (int i = 0; i < 5; i++) {
+            hand.add(card(CARDS[(variant + i) % CARDS.length], i));
+        }
+        gameState.add("hand", hand);
+
+        JsonArray deck = new JsonArray();
+        gameState.add("deck", deck);
+
+        JsonObject state = new JsonObject();
+        JsonArray commands = new JsonArray();
+        commands.add("play");
+        commands.add("end");
+        commands.add("state");
+        state.add("available_commands", commands);
+        state.addProperty("ready_for_command", true);
+        state.addProperty("in_game", true);
+        state.add("game_state", gameState);
+
+        // Cards are added in chunks and the length checked between them, toString isn't cheap
+        while (state.toString().length() < size) {
+            for (int i = 0; i < 8; i++) {
+                deck.add(card(CARDS[deck.size() % CARDS.length], deck.size()));
+            }
+        }
+        return state.toString();
+    }
+
+    private static JsonObject card(String id, int index) {
+        JsonObject card = new JsonObject();
+        card.addProperty("id", id);
+        card.addProperty("name", id.replace('_', ' '));
+        card.addProperty("uuid", String.format("%08x-0000-4000-8000-%012x", id.hashCode(), index));
+        card.addProperty("cost", index % 3);
+        card.addProperty("upgrades", 0);
+        card.addProperty("type", index % 2 == 0 ? "ATTACK" : "SKILL");
+        card.addProperty("is_playable", true);
+        return card;
+    }
+}
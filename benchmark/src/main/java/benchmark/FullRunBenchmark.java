@@ -0,0 +1,184 @@
+package benchmark;
+
+import client.CommandFailedException;
+import client.EventLoop;
+import client.GameClient;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import transport.Protocol;
+import transport.StepTiming;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Whole-run throughput of a real game, as opposed to the transport alone: plays complete runs
+ * from start to the game over screen with a seeded {@link RandomAgent} and reports runs per hour,
+ * floors per second and where the time of a step went.
+ *
+ * usage: FullRunBenchmark [port] [runs] [seed] [character]
+ *
+ * Start the game first with method=SOCKET and turbo=true on the given port. The time split comes
+ * from the TIMING frames the server sends: the read queue and executing and settling are the
+ * game loop, serializing, the write queue and what's left of the round trip are communication.
+ * Exits with 1 if a run couldn't be finished, so it can also serve as an orchestrator agent:
+ * {@code agent.random=java -cp benchmarks.jar benchmark.FullRunBenchmark {port} 1 {seed}}.
+ */
+public class FullRunBenchmark {
+    private static final long COMMAND_TIMEOUT_SECONDS = 120;
+    // Rejected commands in a row after which the run is given up
+    private static final int MAX_CONSECUTIVE_ERRORS = 500;
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        long seed = args.length > 2 ? seed(args[2]) : 42;
+        String character = args.length > 3 ? args[3] : "ironclad";
+
+        RandomAgent agent = new RandomAgent(seed, character);
+        Split split = new Split();
+        JsonParser parser = new JsonParser();
+
+        int finishedRuns = 0;
+        int floors = 0;
+        long commands = 0;
+        long errors = 0;
+        boolean failed = false;
+
+        try (EventLoop loop = new EventLoop()) {
+            GameClient client = new GameClient(loop, new InetSocketAddress("127.0.0.1", port), Protocol.FEATURE_DEFLATE | Protocol.FEATURE_TIMING, 1);
+            client.onTiming(split::add);
+            client.connect().get(60, TimeUnit.SECONDS);
+
+            JsonObject state = parser.parse(client.send("state").get(COMMAND_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                                     .getAsJsonObject();
+            // A run already under way is played to its end first, without counting it
+            boolean counting = !RandomAgent.isInGame(state);
+            boolean wasInGame = RandomAgent.isInGame(state);
+            int runFloor = 0;
+            int consecutiveErrors = 0;
+
+            long start = System.nanoTime();
+            split.reset();
+            while (finishedRuns < runs) {
+                String command = agent.nextCommand(state);
+                if (command == null) {
+                    command = "state";
+                }
+
+                long sentAt = System.nanoTime();
+                String answer;
+                try {
+                    answer = client.send(command).get(COMMAND_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                    consecutiveErrors = 0;
+                } catch (ExecutionException e) {
+                    if (!(e.getCause() instanceof CommandFailedException)) {
+                        throw e;
+                    }
+                    errors++;
+                    if (++consecutiveErrors >= MAX_CONSECUTIVE_ERRORS) {
+                        System.err.println("giving up on the run after " + consecutiveErrors + " rejected commands, last: " + e
+                                .getCause().getMessage());
+                        failed = true;
+                        break;
+                    }
+                    continue;
+                } catch (TimeoutException e) {
+                    System.err.println("no answer to " + command + " in " + COMMAND_TIMEOUT_SECONDS + "s");
+                    failed = true;
+                    break;
+                }
+                split.roundTrip(System.nanoTime() - sentAt);
+                commands++;
+
+                if (answer == null) {
+                    continue;
+                }
+                state = parser.parse(answer).getAsJsonObject();
+
+                boolean inGame = RandomAgent.isInGame(state);
+                if (inGame) {
+                    runFloor = Math.max(runFloor, RandomAgent.floor(state));
+                } else if (wasInGame) {
+                    if (counting) {
+                        finishedRuns++;
+                        floors += runFloor;
+                        System.err.format("run %d over on floor %d%n", finishedRuns, runFloor);
+                    }
+                    counting = true;
+                    runFloor = 0;
+                }
+                wasInGame = inGame;
+            }
+
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.format("%d runs in %.1fs: %.1f runs/hour, %.2f floors/s, %.0f commands/s, %d rejected%n", finishedRuns, seconds, finishedRuns * 3600 / seconds, floors / seconds, commands / seconds, errors);
+            split.report();
+            client.close();
+        }
+
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    private static long seed(String text) {
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            return text.hashCode();
+        }
+    }
+
+    /**
+     * Sums of the server's stamps over every step, against the round trips the agent saw.
+     */
+    private static class Split {
+        private long steps;
+        private long readQueue;
+        private long game;
+        private long serialize;
+        private long write;
+        private long server;
+        private long roundTrips;
+        private long roundTrip;
+
+        synchronized void add(StepTiming timing) {
+            long total = StepTiming.between(timing.received, timing.written);
+            if (total < 0) {
+                // Not the answer to a command
+                return;
+            }
+            steps++;
+            readQueue += Math.max(0, StepTiming.between(timing.received, timing.dequeued));
+            game += Math.max(0, StepTiming.between(timing.dequeued, timing.stateStarted));
+            serialize += Math.max(0, StepTiming.between(timing.stateStarted, timing.stateProduced));
+            write += Math.max(0, StepTiming.between(timing.stateProduced, timing.written));
+            server += total;
+        }
+
+        synchronized void roundTrip(long nanos) {
+            roundTrips++;
+            roundTrip += nanos;
+        }
+
+        synchronized void reset() {
+            steps = readQueue = game = serialize = write = server = roundTrips = roundTrip = 0;
+        }
+
+        synchronized void report() {
+            if (roundTrips == 0 || steps == 0) {
+                System.out.println("no step timings, is the server up to date?");
+                return;
+            }
+
+            // Commands without a timed step, like rejected ones, only count toward the round trip
+            double perStep = (double) roundTrip / roundTrips;
+            double rest = Math.max(0, perStep - (double) server / steps);
+            double total = perStep;
+            System.out.format("per command %.0fus: game loop %.0f%% (read queue %.0fus, execute and settle %.0fus), communication %.0f%% (serialize %.0fus, write queue %.0fus, network and client %.0fus)%n", perStep / 1e3, 100 * (readQueue + game) / (steps * total), readQueue / 1e3 / steps, game / 1e3 / steps, 100 * ((serialize + write) / (double) steps + rest) / total, serialize / 1e3 / steps, write / 1e3 / steps, rest / 1e3);
+        }
+    }
+}
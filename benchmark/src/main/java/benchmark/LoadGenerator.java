@@ -0,0 +1,112 @@
+package benchmark;
+
+import client.EventLoop;
+import client.GameClient;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sustained load against a {@link StubGame}, for numbers closer to a long batch run than JMH's
+ * short iterations. One client keeps a number of pipelined commands in flight for the given time
+ * while the other clients watch. Reports round trip percentiles, commands per second and states
+ * delivered per second across all clients.
+ *
+ * usage: LoadGenerator [state size] [clients] [seconds] [commands in flight] [features]
+ */
+public class LoadGenerator {
+    public static void main(String[] args) throws Exception {
+        int stateSize = argument(args, 0, 16 * 1024);
+        int clients = argument(args, 1, 1);
+        int seconds = argument(args, 2, 30);
+        int inFlight = argument(args, 3, 1);
+        int features = argument(args, 4, GameClient.DEFAULT_FEATURES);
+
+        Recorder recorder = new Recorder();
+        AtomicLong statesDelivered = new AtomicLong();
+
+        try (StubGame game = new StubGame(stateSize); EventLoop loop = new EventLoop()) {
+            InetSocketAddress address = new InetSocketAddress("127.0.0.1", game.getPort());
+
+            GameClient driver = new GameClient(loop, address, features, inFlight);
+            driver.subscribe(state -> statesDelivered.incrementAndGet());
+            driver.connect().get(10, TimeUnit.SECONDS);
+
+            ArrayList<GameClient> observers = new ArrayList<>();
+            for (int i = 1; i < clients; i++) {
+                GameClient observer = new GameClient(loop, address, features, 1);
+                observer.subscribe(state -> statesDelivered.incrementAndGet());
+                observer.connect().get(10, TimeUnit.SECONDS);
+                observers.add(observer);
+            }
+
+            // Ignore the state each client got on connecting
+            statesDelivered.set(0);
+
+            Semaphore slots = new Semaphore(inFlight);
+            long start = System.nanoTime();
+            long end = start + TimeUnit.SECONDS.toNanos(seconds);
+            while (System.nanoTime() < end) {
+                slots.acquire();
+                long sentAt = System.nanoTime();
+                driver.send("play 1").whenComplete((state, error) -> {
+                    if (error == null) {
+                        recorder.record(System.nanoTime() - sentAt);
+                    } else {
+                        recorder.fail();
+                    }
+                    slots.release();
+                });
+            }
+            slots.acquire(inFlight);
+            double elapsed = (System.nanoTime() - start) / 1e9;
+
+            System.out.format("state size %d bytes, %d clients, %d in flight, features %d%n", stateSize, clients, inFlight, features);
+            recorder.report(elapsed);
+            System.out.format("states delivered %.0f/s%n", statesDelivered.get() / elapsed);
+
+            driver.close();
+            for (GameClient observer : observers) {
+                observer.close();
+            }
+        }
+    }
+
+    private static int argument(String[] args, int index, int defaultValue) {
+        return args.length > index ? Integer.parseInt(args[index]) : defaultValue;
+    }
+
+    private static class Recorder {
+        private long[] samples = new long[64 * 1024];
+        private int count = 0;
+        private int failures = 0;
+
+        synchronized void record(long nanos) {
+            if (count == samples.length) {
+                samples = Arrays.copyOf(samples, count * 2);
+            }
+            samples[count++] = nanos;
+        }
+
+        synchronized void fail() {
+            failures++;
+        }
+
+        synchronized void report(double elapsedSeconds) {
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            System.out.format("%d round trips, %d failed, %.0f/s%n", count, failures, count / elapsedSeconds);
+            if (count > 0) {
+                System.out.format("p50 %.1fus  p99 %.1fus  p999 %.1fus  max %.1fus%n", percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 0.999), sorted[count - 1] / 1e3);
+            }
+        }
+
+        private static double percentile(long[] sorted, double quantile) {
+            return sorted[Math.min(sorted.length - 1, (int) (sorted.length * quantile))] / 1e3;
+        }
+    }
+}
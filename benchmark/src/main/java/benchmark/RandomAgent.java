@@ -0,0 +1,148 @@
+package benchmark;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Plays whole runs by picking uniformly among the commands the game allows, the way the Twitch
+ * controller picks for chat when nobody votes. Given the same seed and the same game it sends the
+ * same commands, so two builds can be compared on identical runs.
+ *
+ * In combat it mostly plays a random playable card at a random living target and otherwise ends
+ * the turn. Elsewhere it mostly picks a random choice and otherwise proceeds, skips or leaves;
+ * after {@link #MAX_COMMANDS_PER_FLOOR} commands on one floor it only does the latter, so shops
+ * and card screens can't hold it forever.
+ */
+class RandomAgent {
+    // Seeds the game accepts: base 35, without the letter O
+    private static final String SEED_CHARACTERS = "0123456789ABCDEFGHIJKLMNPQRSTUVWXYZ";
+    private static final int SEED_LENGTH = 10;
+    private static final double PLAY_CHANCE = 0.85;
+    private static final double CHOOSE_CHANCE = 0.75;
+    private static final int MAX_COMMANDS_PER_FLOOR = 200;
+    private static final String[] MOVE_ON_COMMANDS = {"proceed", "confirm", "skip", "leave", "return", "cancel"};
+
+    private final Random random;
+    private final String character;
+
+    private int floor = -1;
+    private int commandsOnFloor = 0;
+
+    RandomAgent(long seed, String character) {
+        this.random = new Random(seed);
+        this.character = character;
+    }
+
+    /**
+     * @return null if the game has nothing for the agent to do
+     */
+    String nextCommand(JsonObject state) {
+        List<String> available = strings(state.getAsJsonArray("available_commands"));
+        if (!isInGame(state)) {
+            return available.contains("start") ? "start " + character + " 0 " + gameSeed() : null;
+        }
+
+        JsonObject game = state.getAsJsonObject("game_state");
+        int currentFloor = game.has("floor") ? game.get("floor").getAsInt() : 0;
+        if (currentFloor != floor) {
+            floor = currentFloor;
+            commandsOnFloor = 0;
+        }
+        boolean stuck = ++commandsOnFloor > MAX_COMMANDS_PER_FLOOR;
+
+        if (available.contains("play") && game.has("combat_state")) {
+            List<String> plays = plays(game.getAsJsonObject("combat_state"));
+            if (!plays.isEmpty() && (!available.contains("end") || random.nextDouble() < PLAY_CHANCE)) {
+                return pick(plays);
+            }
+        }
+        if (available.contains("end")) {
+            return "end";
+        }
+
+        ArrayList<String> moveOn = new ArrayList<>();
+        for (String command : MOVE_ON_COMMANDS) {
+            if (available.contains(command)) {
+                moveOn.add(command);
+            }
+        }
+
+        int choices = game.has("choice_list") ? game.getAsJsonArray("choice_list").size() : 0;
+        if (available.contains("choose") && choices > 0 && (moveOn.isEmpty() || (!stuck && random.nextDouble() < CHOOSE_CHANCE))) {
+            return "choose " + random.nextInt(choices);
+        }
+        if (!moveOn.isEmpty()) {
+            return pick(moveOn);
+        }
+        return available.contains("wait") ? "wait 10" : null;
+    }
+
+    static boolean isInGame(JsonObject state) {
+        return state.has("in_game") && state.get("in_game").getAsBoolean() && state.has("game_state");
+    }
+
+    static int floor(JsonObject state) {
+        if (!isInGame(state)) {
+            return 0;
+        }
+        JsonObject game = state.getAsJsonObject("game_state");
+        return game.has("floor") ? game.get("floor").getAsInt() : 0;
+    }
+
+    private List<String> plays(JsonObject combat) {
+        ArrayList<Integer> targets = new ArrayList<>();
+        JsonArray monsters = combat.getAsJsonArray("monsters");
+        for (int i = 0; i < monsters.size(); i++) {
+            JsonObject monster = monsters.get(i).getAsJsonObject();
+            if (!isTrue(monster, "is_gone") && !isTrue(monster, "half_dead")) {
+                targets.add(i);
+            }
+        }
+
+        ArrayList<String> plays = new ArrayList<>();
+        JsonArray hand = combat.getAsJsonArray("hand");
+        for (int i = 0; i < hand.size(); i++) {
+            JsonObject card = hand.get(i).getAsJsonObject();
+            if (!isTrue(card, "is_playable")) {
+                continue;
+            }
+            if (!isTrue(card, "has_target")) {
+                plays.add("play " + (i + 1));
+            } else if (!targets.isEmpty()) {
+                plays.add("play " + (i + 1) + " " + targets.get(random.nextInt(targets.size())));
+            }
+        }
+        return plays;
+    }
+
+    private String gameSeed() {
+        StringBuilder seed = new StringBuilder();
+        for (int i = 0; i < SEED_LENGTH; i++) {
+            seed.append(SEED_CHARACTERS.charAt(random.nextInt(SEED_CHARACTERS.length())));
+        }
+        return seed.toString();
+    }
+
+    private String pick(List<String> commands) {
+        return commands.get(random.nextInt(commands.size()));
+    }
+
+    private static boolean isTrue(JsonObject object, String key) {
+        return object.has(key) && object.get(key).getAsBoolean();
+    }
+
+    private static List<String> strings(JsonArray array) {
+        ArrayList<String> strings = new ArrayList<>();
+        if (array != null) {
+            for (JsonElement element : array) {
+                strings.add(element.getAsString());
+            }
+        }
+        return strings;
+    }
+}
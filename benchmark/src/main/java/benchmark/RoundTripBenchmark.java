@@ -0,0 +1,83 @@
+package benchmark;
+
+import client.EventLoop;
+import client.GameClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command to state round trip through the socket transport against a {@link StubGame}. One
+ * client sends commands and waits for each resulting state, the others only watch every state
+ * go by, as loggers and visualizers do.
+ *
+ * SampleTime reports the p50/p99/p999 latency, Throughput the round trips per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.SampleTime, Mode.Throughput})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark {
+    @Param({"1024", "16384", "131072"})
+    public int stateSize;
+
+    @Param({"1", "4", "16"})
+    public int clients;
+
+    // Plain, delta, delta with deflate
+    @Param({"0", "1", "5"})
+    public int features;
+
+    private StubGame game;
+    private EventLoop loop;
+    private GameClient driver;
+    private final ArrayList<GameClient> observers = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        game = new StubGame(stateSize);
+        loop = new EventLoop();
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", game.getPort());
+
+        driver = new GameClient(loop, address, features, 1);
+        driver.connect().get(10, TimeUnit.SECONDS);
+
+        for (int i = 1; i < clients; i++) {
+            GameClient observer = new GameClient(loop, address, features, 1);
+            observer.connect().get(10, TimeUnit.SECONDS);
+            observers.add(observer);
+        }
+    }
+
+    @Benchmark
+    public String roundTrip() throws Exception {
+        return driver.send("play 1").get();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        driver.close();
+        for (GameClient observer : observers) {
+            observer.close();
+        }
+        observers.clear();
+        loop.close();
+        game.close();
+    }
+}
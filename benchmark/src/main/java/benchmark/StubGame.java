@@ -0,0 +1,64 @@
+package benchmark;
+
+import transport.RingBufferQueue;
+import transport.SocketServer;
+
+import java.io.IOException;
+
+/**
+ * The socket transport wired up the way setSocketThreads() does it, with a stub in place of the
+ * game: every command taken from the read queue is answered by putting the next canned state on
+ * the write queue, so a round trip measures the transport and nothing else.
+ */
+public class StubGame implements AutoCloseable {
+    private final SocketServer server;
+    private final Thread[] threads;
+
+    public StubGame(int stateSize) throws IOException {
+        RingBufferQueue<String> readQueue = new RingBufferQueue<>(1024, RingBufferQueue.WaitStrategy.PARK, true);
+        RingBufferQueue<String> writeQueue = new RingBufferQueue<>(1024, RingBufferQueue.WaitStrategy.PARK, false);
+        CannedStates states = new CannedStates(stateSize);
+
+        server = new SocketServer(0, readQueue);
+
+        Thread writeThread = new Thread(() -> {
+            try {
+                while (true) {
+                    server.broadcast(writeQueue.take());
+                }
+            } catch (IOException | InterruptedException e) {
+                // closed
+            }
+        });
+
+        // Stands in for CommunicationMod executing the command and sending the resulting state
+        Thread gameThread = new Thread(() -> {
+            try {
+                while (true) {
+                    readQueue.take();
+                    writeQueue.add(states.next());
+                }
+            } catch (InterruptedException e) {
+                // closed
+            }
+        });
+
+        threads = new Thread[]{new Thread(server), writeThread, gameThread};
+        for (Thread thread : threads) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public int getPort() {
+        return server.getPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        server.close();
+    }
+}
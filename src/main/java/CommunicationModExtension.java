@@ -8,62 +8,94 @@ import com.gikk.twirk.TwirkBuilder;
 import com.gikk.twirk.events.TwirkListener;
 import com.gikk.twirk.types.twitchMessage.TwitchMessage;
 import com.gikk.twirk.types.users.TwitchUser;
+import com.google.gson.JsonObject;
+import com.megacrit.cardcrawl.actions.GameActionManager;
+import com.megacrit.cardcrawl.core.CardCrawlGame;
+import com.megacrit.cardcrawl.dungeons.AbstractDungeon;
+import com.megacrit.cardcrawl.rooms.AbstractRoom;
 import communicationmod.CommandExecutor;
 import communicationmod.CommunicationMod;
 import communicationmod.GameStateConverter;
 import communicationmod.InvalidCommandException;
 import de.robojumper.ststwitch.TwitchConfig;
 import ludicrousspeed.Controller;
+import transport.LocalHttpServer;
+import transport.QueueEndpoint;
+import transport.RingBufferQueue;
+import transport.SharedMemoryServer;
+import transport.SocketServer;
+import transport.StateEndpoint;
+import transport.StepTimer;
+import transport.Threads;
 import twitch.TwitchController;
+import twitch.VoteOverlay;
 
-import java.io.BufferedInputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
 import java.util.Optional;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 
 public class CommunicationModExtension {
+    // Defaults for the config, see ExtensionConfig
     public static CommunicationMethod communicationMethod = CommunicationMethod.TWITCH_CHAT;
     private static final int PORT = 8080;
+    // Loopback only: the latest state for pollers and, with Twitch, the OBS vote overlay
+    private static final int HTTP_PORT = 8081;
+    private static final int QUEUE_CAPACITY = 1024;
+
+    private static ExtensionConfig config = null;
+    private static LocalHttpServer httpServer = null;
+    private static StateEndpoint stateEndpoint = null;
 
     enum CommunicationMethod {
         SOCKET,
         TWITCH_CHAT,
-        EXTERNAL_PROCESS
+        EXTERNAL_PROCESS,
+        SHARED_MEMORY,
+        // Plays back a run log instead of talking to an agent, see RunLogReplay
+        REPLAY
     }
 
     @SpirePatch(clz = CommunicationMod.class, method = "startExternalProcess", paramtypez = {})
     public static class NetworkCommunicationPatch {
         @SpirePrefixPatch
         public static SpireReturn startNetworkCommunications(CommunicationMod communicationMod) {
+            if (config == null) {
+                config = ExtensionConfig.load(communicationMethod, PORT, HTTP_PORT);
+                communicationMethod = config.method;
+                System.err.println("communication " + config);
+                if (!config.runLogDir.isEmpty() && communicationMethod != CommunicationMethod.REPLAY) {
+                    RunLogPatches.directory = Paths.get(config.runLogDir);
+                }
+                Path spillDirectory = Paths.get(config.saveStateSpillDir.isEmpty() ? System.getProperty("java.io.tmpdir") : config.saveStateSpillDir);
+                SaveStateCommandPatches.exportDirectory = Paths.get(config.saveStateExportDir);
+                SaveStateCommandPatches.savedStates.setLimits(config.saveStateMaxEntries, config.saveStateMaxMegabytes * 1024 * 1024, config.saveStateWarmMegabytes * 1024 * 1024, config.saveStateColdMegabytes * 1024 * 1024, spillDirectory);
+            }
+
+            if (communicationMethod != CommunicationMethod.EXTERNAL_PROCESS) {
+                startHttpServer();
+            }
+
             switch (communicationMethod) {
                 case SOCKET:
-                    // THIS IS EXPERIMENTAL CODE
-//                    BaseMod.subscribe(new LudicrousSpeedMod());
-//                    Settings.MASTER_VOLUME = 0;
-//                    CardCrawlGame.sound.update();
-//                    Settings.isDemo = true;
-//                    SaveStateMod.shouldGoFast = true;
-//                    LudicrousSpeedMod.plaidMode = true;
-//
-//                    Settings.ACTION_DUR_XFAST = 0.001F;
-//                    Settings.ACTION_DUR_FASTER = 0.002F;
-//                    Settings.ACTION_DUR_FAST = 0.0025F;
-//                    Settings.ACTION_DUR_MED = 0.005F;
-//                    Settings.ACTION_DUR_LONG = .01F;
-//                    Settings.ACTION_DUR_XLONG = .015F;
-//
-//                    LudicrousSpeedMod.controller = new ColonelSanders();
-
                     setSocketThreads();
+                    startTurboMode();
                     return SpireReturn.Return(true);
                 case TWITCH_CHAT:
                     setTwitchThreads();
                     return SpireReturn.Return(true);
+                case SHARED_MEMORY:
+                    setSharedMemoryThreads();
+                    startTurboMode();
+                    return SpireReturn.Return(true);
+                case REPLAY:
+                    setReplayThreads();
+                    startTurboMode();
+                    return SpireReturn.Return(true);
                 case EXTERNAL_PROCESS:
                 default:
                     return SpireReturn.Continue();
@@ -72,63 +104,97 @@ public class CommunicationModExtension {
     }
 
     private static void setSocketThreads() {
-        Thread starterThread = new Thread(() -> {
-            try {
-                // start stuff then start read thread and write thread
-                ServerSocket serverSocket = new ServerSocket(PORT);
+        // Commands come from the selector thread and, when pipelined, the write thread
+        RingBufferQueue<String> readQueue = new RingBufferQueue<>(QUEUE_CAPACITY, RingBufferQueue.WaitStrategy.PARK, true);
+        RingBufferQueue<String> writeQueue = new RingBufferQueue<>(QUEUE_CAPACITY, RingBufferQueue.WaitStrategy.PARK, false);
+
+        SocketServer server;
+        try {
+            server = new SocketServer(config.port, readQueue);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
 
-                Socket socket = serverSocket.accept();
+        ReflectionHacks.setPrivateStatic(CommunicationMod.class, "readQueue", readQueue);
+        ReflectionHacks.setPrivateStatic(CommunicationMod.class, "writeQueue", writeQueue);
+        SaveStateCommandPatches.socketServer = server;
 
-                Thread writeThread = new Thread(() -> {
-                    try {
-                        DataOutputStream out = new DataOutputStream(socket
-                                .getOutputStream());
-                        LinkedBlockingQueue<String> writeQueue = new LinkedBlockingQueue<>();
+        // The selector thread accepts clients and reads their commands into the read queue. It
+        // never blocks on a client, so it stays a platform thread on Java 21
+        Thread readThread = new Thread(server);
+        readThread.start();
 
-                        ReflectionHacks
-                                .setPrivateStatic(CommunicationMod.class, "writeQueue", writeQueue);
+        ReflectionHacks.setPrivateStatic(CommunicationMod.class, "readThread", readThread);
 
-                        while (true) {
-                            if (!writeQueue.isEmpty()) {
-                                out.writeUTF(writeQueue.remove());
-                            }
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                });
-                writeThread.start();
+        // Blocks until the game produces a message, then fans it out to every client
+        Thread writeThread = Threads.start("communication write", () -> {
+            try {
+                while (true) {
+                    String message = writeQueue.take();
+                    server.broadcast(message);
+                    publishState(message);
+                }
+            } catch (IOException | InterruptedException e) {
+                e.printStackTrace();
+            }
+        });
 
-                ReflectionHacks
-                        .setPrivateStatic(CommunicationMod.class, "writeThread", writeThread);
+        ReflectionHacks.setPrivateStatic(CommunicationMod.class, "writeThread", writeThread);
+    }
 
-                Thread readThread = new Thread(() -> {
-                    try {
-                        DataInputStream in = new DataInputStream(new BufferedInputStream(socket
-                                .getInputStream()));
-                        LinkedBlockingQueue<String> readQueue = new LinkedBlockingQueue<>();
+    private static void setSharedMemoryThreads() {
+        RingBufferQueue<String> readQueue = new RingBufferQueue<>(QUEUE_CAPACITY, RingBufferQueue.WaitStrategy.PARK, false);
+        RingBufferQueue<String> writeQueue = new RingBufferQueue<>(QUEUE_CAPACITY, RingBufferQueue.WaitStrategy.PARK, false);
+
+        SharedMemoryServer server;
+        try {
+            Path directory = config.sharedMemoryDir.isEmpty() ? SharedMemoryServer.defaultDirectory() : Paths.get(config.sharedMemoryDir);
+            server = new SharedMemoryServer(directory, readQueue);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
 
-                        ReflectionHacks
-                                .setPrivateStatic(CommunicationMod.class, "readQueue", readQueue);
+        ReflectionHacks.setPrivateStatic(CommunicationMod.class, "readQueue", readQueue);
+        ReflectionHacks.setPrivateStatic(CommunicationMod.class, "writeQueue", writeQueue);
 
-                        while (true) {
-                            readQueue.add(in.readUTF());
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                });
-                readThread.start();
+        // Platform threads even on Java 21, the rings spin before they park and a virtual thread
+        // spinning would hold up the others on its carrier
+        Thread readThread = new Thread(server);
+        readThread.start();
 
-                ReflectionHacks
-                        .setPrivateStatic(CommunicationMod.class, "readThread", readThread);
+        ReflectionHacks.setPrivateStatic(CommunicationMod.class, "readThread", readThread);
 
-            } catch (IOException e) {
+        Thread writeThread = new Thread(() -> {
+            try {
+                while (true) {
+                    String message = server.next(writeQueue);
+                    server.send(message);
+                    publishState(message);
+                }
+            } catch (InterruptedException e) {
                 e.printStackTrace();
             }
         });
+        writeThread.start();
+
+        ReflectionHacks.setPrivateStatic(CommunicationMod.class, "writeThread", writeThread);
+    }
+
+    private static void setReplayThreads() {
+        RingBufferQueue<String> readQueue = new RingBufferQueue<>(QUEUE_CAPACITY, RingBufferQueue.WaitStrategy.PARK, false);
+        RingBufferQueue<String> writeQueue = new RingBufferQueue<>(QUEUE_CAPACITY, RingBufferQueue.WaitStrategy.PARK, false);
+
+        ReflectionHacks.setPrivateStatic(CommunicationMod.class, "readQueue", readQueue);
+        ReflectionHacks.setPrivateStatic(CommunicationMod.class, "writeQueue", writeQueue);
+
+        // Feeds the log in and takes the game's answers, so it is both the read and write thread
+        Thread replayThread = Threads.start("run log replay", new RunLogReplay(Paths
+                .get(config.replayLog), readQueue, writeQueue, CommunicationModExtension::publishState, config.replayExit));
 
-        starterThread.start();
+        ReflectionHacks.setPrivateStatic(CommunicationMod.class, "readThread", replayThread);
+        ReflectionHacks.setPrivateStatic(CommunicationMod.class, "writeThread", replayThread);
     }
 
     private static void setTwitchThreads() {
@@ -144,11 +210,13 @@ public class CommunicationModExtension {
 
             try {
                 Twirk twirk = new TwirkBuilder(channel, username, token).setSSL(true).build();
-                LinkedBlockingQueue<String> readQueue = new LinkedBlockingQueue<>();
+                // Votes are tallied on the game thread, admin commands arrive on the chat thread
+                RingBufferQueue<String> readQueue = new RingBufferQueue<>(QUEUE_CAPACITY, RingBufferQueue.WaitStrategy.PARK, true);
                 ReflectionHacks
                         .setPrivateStatic(CommunicationMod.class, "readQueue", readQueue);
                 TwitchController controller = new TwitchController(readQueue, twirk);
                 BaseMod.subscribe(controller);
+                startOverlay(controller);
 
                 twirk.addIrcListener(new TwirkListener() {
                     @Override
@@ -160,21 +228,22 @@ public class CommunicationModExtension {
                 twirk.connect();
                 System.err.println("connected as " + username);
 
-                Thread writeThread = new Thread(() -> {
-                    LinkedBlockingQueue<String> writeQueue = new LinkedBlockingQueue<>();
-                    ReflectionHacks
-                            .setPrivateStatic(CommunicationMod.class, "writeQueue", writeQueue);
+                RingBufferQueue<String> writeQueue = new RingBufferQueue<>(QUEUE_CAPACITY, RingBufferQueue.WaitStrategy.PARK, false);
+                ReflectionHacks
+                        .setPrivateStatic(CommunicationMod.class, "writeQueue", writeQueue);
 
-                    while (true) {
-                        if (!writeQueue.isEmpty()) {
-                            String stateMessage = writeQueue.poll();
-                            controller.startVote(stateMessage);
+                Thread writeThread = Threads.start("twitch write", () -> {
+                    try {
+                        while (true) {
+                            String message = writeQueue.take();
+                            publishState(message);
+                            controller.startVote(message);
                         }
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
                     }
                 });
 
-                writeThread.start();
-
                 ReflectionHacks
                         .setPrivateStatic(CommunicationMod.class, "writeThread", writeThread);
 
@@ -186,36 +255,180 @@ public class CommunicationModExtension {
         }
     }
 
+    private static void startHttpServer() {
+        if (httpServer != null || config.httpPort == 0) {
+            return;
+        }
+
+        try {
+            httpServer = new LocalHttpServer(config.httpPort);
+            stateEndpoint = new StateEndpoint(httpServer);
+            new QueueEndpoint(httpServer, () -> ReflectionHacks.getPrivateStatic(CommunicationMod.class, "readQueue"),
+                    () -> ReflectionHacks.getPrivateStatic(CommunicationMod.class, "writeQueue"));
+
+            Threads.start("local http accept", httpServer);
+            System.err.println("latest state at http://127.0.0.1:" + config.httpPort + StateEndpoint.PATH);
+        } catch (IOException e) {
+            // Only pollers and the overlay need it
+            e.printStackTrace();
+        }
+    }
+
+    private static void startTurboMode() {
+        if (config.turbo) {
+            TurboMode.enable(new ColonelSanders(config.turboCommandBudget));
+        }
+    }
+
+    private static void publishState(String message) {
+        if (stateEndpoint != null) {
+            stateEndpoint.publish(message);
+        }
+    }
+
+    private static void startOverlay(TwitchController controller) {
+        if (httpServer == null) {
+            // The game draws the votes itself
+            return;
+        }
+
+        controller.setOverlay(new VoteOverlay(httpServer));
+        System.err.println("vote overlay at http://127.0.0.1:" + config.httpPort + "/");
+    }
+
+    /**
+     * Feeds commands to the game from inside the update loop in turbo mode.
+     *
+     * Each step runs every queued command the game can take right now, up to a budget, and stops
+     * at the first one that has to wait for the game to settle. Every command is answered on its
+     * own, with an error or with the state once the game has settled after it, since clients
+     * count answers to pace their commands. The state is only serialized if its
+     * {@link StateFingerprint} differs from that of the last state sent or the command works a
+     * screen the fingerprint can't see into; otherwise the last state is sent again.
+     */
     private static class ColonelSanders implements Controller {
+        private static final List<String> SAVE_STATE_COMMANDS = Arrays.asList("savestate", "loadstate");
+        // Selecting on a screen changes what the agent sees without changing anything hashed
+        private static final List<String> SERIALIZING_COMMANDS = Arrays.asList("state", "choose", "click", "key");
+        // A command that stays unavailable this long is run anyway, so the agent gets its error
+        private static final int MAX_WAITING_STEPS = 100;
+
+        private final int commandBudget;
         private boolean shouldSend = true;
+        private boolean forceSend = false;
+        private long lastSentFingerprint = 0;
+        private String lastSentState = null;
+        private int waitingSteps = 0;
+
+        ColonelSanders(int commandBudget) {
+            this.commandBudget = commandBudget;
+        }
 
         @Override
         public void step() {
-            LinkedBlockingQueue<String> writeQueue =
+            BlockingQueue<String> writeQueue =
                     ReflectionHacks
                             .getPrivateStatic(CommunicationMod.class, "writeQueue");
+            BlockingQueue<String> readQueue = ReflectionHacks
+                    .getPrivateStatic(CommunicationMod.class, "readQueue");
+            if (writeQueue == null || readQueue == null) {
+                return;
+            }
+
+            List<String> available = CommandExecutor.getAvailableCommands();
+            if (!isSettled(available)) {
+                return;
+            }
 
-            if (writeQueue != null && shouldSend) {
-                shouldSend = false;
-                writeQueue.add(GameStateConverter.getCommunicationState());
+            if (shouldSend) {
+                sendState(writeQueue, available);
             }
 
+            for (int executed = 0; executed < commandBudget; executed++) {
+                String command = readQueue.peek();
+                if (command == null) {
+                    waitingSteps = 0;
+                    return;
+                }
+                if (!isAvailable(command, available) && waitingSteps++ < MAX_WAITING_STEPS) {
+                    return;
+                }
 
-            BlockingQueue<String> readQueue = ReflectionHacks
-                    .getPrivateStatic(CommunicationMod.class, "readQueue");
-            if (readQueue != null && !readQueue.isEmpty()) {
+                readQueue.poll();
+                waitingSteps = 0;
                 try {
-                    CommandExecutor.executeCommand(readQueue.poll());
+                    CommandExecutor.executeCommand(command);
                     shouldSend = true;
+                    forceSend = SERIALIZING_COMMANDS.contains(verb(command)) || SaveStateCommandPatches.statsRequested;
                 } catch (InvalidCommandException e) {
-                    e.printStackTrace();
+                    JsonObject error = new JsonObject();
+                    error.addProperty("error", e.getMessage());
+                    error.addProperty("ready_for_command", true);
+                    writeQueue.add(error.toString());
+                }
+
+                available = CommandExecutor.getAvailableCommands();
+                if (!isSettled(available)) {
+                    // Answered once the game settles, before any further command runs
+                    return;
+                }
+                if (shouldSend) {
+                    sendState(writeQueue, available);
                 }
             }
         }
 
+        private void sendState(BlockingQueue<String> writeQueue, List<String> available) {
+            long fingerprint = StateFingerprint.of(available);
+            if (forceSend || lastSentState == null || fingerprint != lastSentFingerprint) {
+                lastSentFingerprint = fingerprint;
+                lastSentState = GameStateConverter.getCommunicationState();
+            } else {
+                // Not serialized, but timing clients still get this step's state
+                StepTimer.stateStarted();
+                StepTimer.stateProduced(lastSentState);
+            }
+            writeQueue.add(lastSentState);
+            shouldSend = false;
+            forceSend = false;
+        }
+
         @Override
         public boolean isDone() {
             return false;
         }
+
+        private static boolean isSettled(List<String> available) {
+            if (available.isEmpty()) {
+                return false;
+            }
+            if (CardCrawlGame.mode != CardCrawlGame.GameMode.GAMEPLAY || AbstractDungeon.currMapNode == null) {
+                return true;
+            }
+
+            AbstractRoom room = AbstractDungeon.getCurrRoom();
+            GameActionManager actionManager = AbstractDungeon.actionManager;
+            if (room == null || room.phase != AbstractRoom.RoomPhase.COMBAT || actionManager == null) {
+                return true;
+            }
+            return actionManager.actions.isEmpty() && actionManager.currentAction == null && actionManager.phase == GameActionManager.Phase.WAITING_ON_USER;
+        }
+
+        private static boolean isAvailable(String command, List<String> available) {
+            String verb = verb(command);
+            if (SaveStateCommandPatches.isStoreCommand(command)) {
+                return true;
+            }
+            // Handled by SaveStateCommandPatches whenever cards can be played
+            if (SAVE_STATE_COMMANDS.contains(verb)) {
+                return available.contains("play");
+            }
+            return available.contains(verb);
+        }
+
+        private static String verb(String command) {
+            String[] tokens = command.trim().toLowerCase(Locale.ROOT).split("\\s+");
+            return tokens[0];
+        }
     }
 }
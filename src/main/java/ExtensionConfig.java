@@ -0,0 +1,150 @@
+import com.evacipated.cardcrawl.modthespire.lib.SpireConfig;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Startup settings, read once when CommunicationMod starts its external process. They come from
+ * the mod's SpireConfig file, which is written with the defaults on first start, and any of them
+ * can be overridden for one game with a system property of the same name prefixed by
+ * {@value #PROPERTY_PREFIX}, e.g. {@code -Dcommunicationmod.method=SOCKET -Dcommunicationmod.turbo=true}.
+ */
+class ExtensionConfig {
+    static final String PROPERTY_PREFIX = "communicationmod.";
+
+    private static final String METHOD = "method";
+    private static final String TURBO = "turbo";
+    private static final String PORT = "port";
+    private static final String HTTP_PORT = "httpPort";
+    private static final String SHARED_MEMORY_DIR = "sharedMemoryDir";
+    private static final String TURBO_COMMAND_BUDGET = "turboCommandBudget";
+    private static final int DEFAULT_TURBO_COMMAND_BUDGET = 16;
+    private static final String RUN_LOG_DIR = "runLogDir";
+    private static final String REPLAY_LOG = "replayLog";
+    private static final String REPLAY_EXIT = "replayExit";
+    private static final String SAVE_STATE_MAX_ENTRIES = "saveStateMaxEntries";
+    private static final String SAVE_STATE_MAX_MEGABYTES = "saveStateMaxMegabytes";
+    private static final String SAVE_STATE_WARM_MEGABYTES = "saveStateWarmMegabytes";
+    private static final String SAVE_STATE_COLD_MEGABYTES = "saveStateColdMegabytes";
+    private static final String SAVE_STATE_SPILL_DIR = "saveStateSpillDir";
+    private static final String SAVE_STATE_EXPORT_DIR = "saveStateExportDir";
+    static final String DEFAULT_SAVE_STATE_EXPORT_DIR = "savestates";
+
+    CommunicationModExtension.CommunicationMethod method;
+    // Plaid mode, no audio, near zero action durations and the ColonelSanders controller, see
+    // TurboMode
+    boolean turbo;
+    // Commands turbo mode runs per update at most, when the game can take them without settling
+    int turboCommandBudget;
+    int port;
+    // 0 turns the local HTTP server off
+    int httpPort;
+    // Empty for SharedMemoryServer.defaultDirectory()
+    String sharedMemoryDir;
+    // Where every run's commands are logged, see RunLogPatches; empty, the default, turns logging off
+    String runLogDir;
+    // The run log the REPLAY method plays back, and whether to quit the game once it has
+    String replayLog;
+    boolean replayExit;
+    // Caps on the named save states' tiers, see SaveStateStore; 0 turns the warm or cold tier off
+    int saveStateMaxEntries;
+    long saveStateMaxMegabytes;
+    long saveStateWarmMegabytes;
+    long saveStateColdMegabytes;
+    // Where cold save states are mapped, empty for the system's temporary directory
+    String saveStateSpillDir;
+    // The only directory savestate export and import files may be in, see SaveStateCommandPatches
+    String saveStateExportDir;
+
+    private ExtensionConfig() {
+    }
+
+    static ExtensionConfig load(CommunicationModExtension.CommunicationMethod defaultMethod, int defaultPort, int defaultHttpPort) {
+        Properties defaults = new Properties();
+        defaults.setProperty(METHOD, defaultMethod.name());
+        defaults.setProperty(TURBO, Boolean.toString(false));
+        defaults.setProperty(TURBO_COMMAND_BUDGET, Integer.toString(DEFAULT_TURBO_COMMAND_BUDGET));
+        defaults.setProperty(PORT, Integer.toString(defaultPort));
+        defaults.setProperty(HTTP_PORT, Integer.toString(defaultHttpPort));
+        defaults.setProperty(SHARED_MEMORY_DIR, "");
+        defaults.setProperty(RUN_LOG_DIR, "");
+        defaults.setProperty(REPLAY_LOG, "");
+        defaults.setProperty(REPLAY_EXIT, Boolean.toString(false));
+        defaults.setProperty(SAVE_STATE_MAX_ENTRIES, Integer.toString(SaveStateStore.DEFAULT_MAX_ENTRIES));
+        defaults.setProperty(SAVE_STATE_MAX_MEGABYTES, Long.toString(SaveStateStore.DEFAULT_MAX_BYTES / 1024 / 1024));
+        defaults.setProperty(SAVE_STATE_WARM_MEGABYTES, Long.toString(SaveStateStore.DEFAULT_MAX_WARM_BYTES / 1024 / 1024));
+        defaults.setProperty(SAVE_STATE_COLD_MEGABYTES, Long.toString(SaveStateStore.DEFAULT_MAX_COLD_BYTES / 1024 / 1024));
+        defaults.setProperty(SAVE_STATE_SPILL_DIR, "");
+        defaults.setProperty(SAVE_STATE_EXPORT_DIR, DEFAULT_SAVE_STATE_EXPORT_DIR);
+
+        Properties file = defaults;
+        try {
+            SpireConfig config = new SpireConfig("CommunicationModExtension", "config", defaults);
+            config.save();
+            file = new Properties(defaults);
+            for (String key : defaults.stringPropertyNames()) {
+                file.setProperty(key, config.getString(key));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        ExtensionConfig config = new ExtensionConfig();
+        String methodName = get(file, METHOD);
+        try {
+            config.method = CommunicationModExtension.CommunicationMethod.valueOf(methodName.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.err.println("unknown communication method " + methodName + ", using " + defaultMethod);
+            config.method = defaultMethod;
+        }
+
+        config.replayLog = get(file, REPLAY_LOG).trim();
+        config.replayExit = Boolean.parseBoolean(get(file, REPLAY_EXIT).trim());
+        if (config.method == CommunicationModExtension.CommunicationMethod.REPLAY && config.replayLog.isEmpty()) {
+            System.err.println("the REPLAY method needs a replayLog, using " + defaultMethod);
+            config.method = defaultMethod;
+        }
+
+        config.turbo = Boolean.parseBoolean(get(file, TURBO).trim());
+        if (config.turbo && config.method != CommunicationModExtension.CommunicationMethod.SOCKET && config.method != CommunicationModExtension.CommunicationMethod.SHARED_MEMORY && config.method != CommunicationModExtension.CommunicationMethod.REPLAY) {
+            System.err.println("turbo mode needs the SOCKET, SHARED_MEMORY or REPLAY method, not " + config.method);
+            config.turbo = false;
+        }
+
+        config.turboCommandBudget = Math.max(1, getInt(file, TURBO_COMMAND_BUDGET, DEFAULT_TURBO_COMMAND_BUDGET));
+        config.port = getInt(file, PORT, defaultPort);
+        config.httpPort = getInt(file, HTTP_PORT, defaultHttpPort);
+        config.sharedMemoryDir = get(file, SHARED_MEMORY_DIR).trim();
+        config.runLogDir = get(file, RUN_LOG_DIR).trim();
+        config.saveStateMaxEntries = Math.max(1, getInt(file, SAVE_STATE_MAX_ENTRIES, SaveStateStore.DEFAULT_MAX_ENTRIES));
+        config.saveStateMaxMegabytes = Math.max(1, getInt(file, SAVE_STATE_MAX_MEGABYTES, (int) (SaveStateStore.DEFAULT_MAX_BYTES / 1024 / 1024)));
+        config.saveStateWarmMegabytes = Math.max(0, getInt(file, SAVE_STATE_WARM_MEGABYTES, (int) (SaveStateStore.DEFAULT_MAX_WARM_BYTES / 1024 / 1024)));
+        config.saveStateColdMegabytes = Math.max(0, getInt(file, SAVE_STATE_COLD_MEGABYTES, (int) (SaveStateStore.DEFAULT_MAX_COLD_BYTES / 1024 / 1024)));
+        config.saveStateSpillDir = get(file, SAVE_STATE_SPILL_DIR).trim();
+        config.saveStateExportDir = get(file, SAVE_STATE_EXPORT_DIR).trim();
+        if (config.saveStateExportDir.isEmpty()) {
+            config.saveStateExportDir = DEFAULT_SAVE_STATE_EXPORT_DIR;
+        }
+        return config;
+    }
+
+    private static String get(Properties file, String key) {
+        return System.getProperty(PROPERTY_PREFIX + key, file.getProperty(key));
+    }
+
+    private static int getInt(Properties file, String key, int defaultValue) {
+        String value = get(file, key);
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("bad " + key + " " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "method=" + method + " turbo=" + turbo + " turboCommandBudget=" + turboCommandBudget + " port=" + port + " httpPort=" + httpPort + " sharedMemoryDir=" + sharedMemoryDir + " runLogDir=" + runLogDir + " replayLog=" + replayLog + " saveStateMaxEntries=" + saveStateMaxEntries + " saveStateMaxMegabytes=" + saveStateMaxMegabytes + " saveStateWarmMegabytes=" + saveStateWarmMegabytes + " saveStateColdMegabytes=" + saveStateColdMegabytes + " saveStateSpillDir=" + saveStateSpillDir + " saveStateExportDir=" + saveStateExportDir;
+    }
+}
@@ -0,0 +1,162 @@
+import com.evacipated.cardcrawl.modthespire.lib.SpirePatch;
+import com.evacipated.cardcrawl.modthespire.lib.SpirePostfixPatch;
+import com.evacipated.cardcrawl.modthespire.lib.SpirePrefixPatch;
+import com.megacrit.cardcrawl.core.Settings;
+import com.megacrit.cardcrawl.helpers.SeedHelper;
+import communicationmod.CommandExecutor;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Records every command the game executes into a run log, one file per run, so a run can be
+ * reproduced with the REPLAY method (see {@link RunLogReplay}).
+ *
+ * A run log is plain text, one command per line, starting with the start command rewritten to
+ * hold the character, ascension and seed the game actually used:
+ * <pre>
+ *   # CommunicationModExtension run log 1
+ *   start IRONCLAD 0 4Q2EXS5ZB2CN
+ *   choose 0
+ *   play 1 0
+ *   !play 7
+ * </pre>
+ * Commands the game rejected are prefixed with {@value #REJECTED}, so a replay can tell when the
+ * game no longer agrees with the log. Commands before the first start and state commands, which
+ * change nothing, aren't recorded. Save state exports and imports over the socket are written as
+ * comments, since a replay has no client to send to or take from. Lines are flushed as they are written, so a log survives the
+ * game crashing.
+ */
+public class RunLogPatches {
+    static final String HEADER = "# CommunicationModExtension run log 1";
+    static final String REJECTED = "!";
+
+    // Set by CommunicationModExtension when logging is on; game thread only after that
+    static Path directory = null;
+    private static BufferedWriter log = null;
+    // Written by the postfix, or as rejected by the next prefix if the command threw
+    private static String pending = null;
+
+    @SpirePatch(
+            clz = CommandExecutor.class,
+            method = "executeCommand"
+    )
+    public static class RecordCommand {
+        @SpirePrefixPatch
+        public static void started(String command) {
+            if (directory == null) {
+                return;
+            }
+
+            flushRejected();
+            // SaveStateCommandPatches logs these itself, see recordSaveStateCommand
+            String verb = verb(command);
+            if (!verb.equals("savestate") && !verb.equals("loadstate")) {
+                pending = command.trim();
+            }
+        }
+
+        // Not reached when the command throws
+        @SpirePostfixPatch
+        public static void finished(String command) {
+            if (directory == null || pending == null) {
+                return;
+            }
+
+            String done = pending;
+            pending = null;
+            String[] tokens = done.toLowerCase(Locale.ROOT).split("\\s+");
+            if (tokens[0].equals("start")) {
+                startLog(tokens);
+            } else if (!tokens[0].equals("state")) {
+                write(done);
+            }
+        }
+    }
+
+    /**
+     * Logs a savestate or loadstate command once it has run or been rejected, since
+     * SaveStateCommandPatches returns early and the postfix never sees it.
+     */
+    static void recordSaveStateCommand(String command, boolean accepted) {
+        if (directory == null) {
+            return;
+        }
+
+        // Its prefix may have run before this class's
+        flushRejected();
+        String line = command.trim();
+        if (SaveStateCommandPatches.usesClient(line)) {
+            write("# " + line);
+        } else {
+            write(accepted ? line : REJECTED + line);
+        }
+    }
+
+    private static void flushRejected() {
+        if (pending != null) {
+            write(REJECTED + pending);
+            pending = null;
+        }
+    }
+
+    static String verb(String command) {
+        return command.trim().toLowerCase(Locale.ROOT).split("\\s+")[0];
+    }
+
+    private static void startLog(String[] tokens) {
+        closeLog();
+
+        // The start command has just set the seed, picking one at random if it wasn't given
+        String character = tokens.length > 1 ? tokens[1].toUpperCase(Locale.ROOT) : "IRONCLAD";
+        String ascension = tokens.length > 2 ? tokens[2] : "0";
+        String seed = SeedHelper.getString(Settings.seed);
+        String time = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        Path file = directory.resolve(time + "-" + character.toLowerCase(Locale.ROOT) + "-" + seed + ".log");
+        try {
+            Files.createDirectories(directory);
+            log = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+            System.err.println("recording the run to " + file);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        write(HEADER);
+        write("start " + character + " " + ascension + " " + seed);
+    }
+
+    private static void write(String line) {
+        if (log == null) {
+            return;
+        }
+
+        try {
+            log.write(line);
+            log.newLine();
+            log.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeLog();
+        }
+    }
+
+    private static void closeLog() {
+        if (log == null) {
+            return;
+        }
+
+        try {
+            log.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        log = null;
+    }
+}
@@ -0,0 +1,103 @@
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * Plays a run log recorded by {@link RunLogPatches} back into the game with no client attached,
+ * as fast as the game answers: each command goes into the read queue once the game has answered
+ * the previous one on the write queue.
+ *
+ * A command the game rejects now but accepted when recorded, or the other way round, means the
+ * game has desynced from the log. Desyncs are counted and printed, and the replay goes on.
+ */
+class RunLogReplay implements Runnable {
+    // Command errors are tiny, anything longer is a state and isn't worth parsing to find out
+    private static final int MAX_ERROR_LENGTH = 1024;
+
+    private final Path file;
+    private final BlockingQueue<String> readQueue;
+    private final BlockingQueue<String> writeQueue;
+    private final Consumer<String> onMessage;
+    private final boolean exitWhenDone;
+
+    RunLogReplay(Path file, BlockingQueue<String> readQueue, BlockingQueue<String> writeQueue, Consumer<String> onMessage, boolean exitWhenDone) {
+        this.file = file;
+        this.readQueue = readQueue;
+        this.writeQueue = writeQueue;
+        this.onMessage = onMessage;
+        this.exitWhenDone = exitWhenDone;
+    }
+
+    @Override
+    public void run() {
+        List<String> commands;
+        try {
+            commands = read(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        try {
+            // The game is ready for the first command once it sends its first state
+            onMessage.accept(writeQueue.take());
+
+            int desyncs = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < commands.size(); i++) {
+                String line = commands.get(i);
+                boolean expectRejected = line.startsWith(RunLogPatches.REJECTED);
+                String command = expectRejected ? line.substring(RunLogPatches.REJECTED.length()) : line;
+
+                readQueue.put(command);
+                String answer = writeQueue.take();
+                onMessage.accept(answer);
+
+                if (isError(answer) != expectRejected) {
+                    desyncs++;
+                    System.err.println("replay desync at command " + (i + 1) + " (" + command + "): " + (expectRejected ? "accepted, was rejected" : "rejected, was accepted: " + answer));
+                }
+            }
+
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.err.format("replayed %d commands from %s in %.1fs (%.0f/s), %d desyncs%n", commands.size(), file, seconds, commands.size() / seconds, desyncs);
+            if (exitWhenDone) {
+                System.exit(desyncs == 0 ? 0 : 1);
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static List<String> read(Path file) throws IOException {
+        ArrayList<String> commands = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            String trimmed = line.trim();
+            if (!trimmed.isEmpty() && !trimmed.startsWith("#")) {
+                commands.add(trimmed);
+            }
+        }
+        return commands;
+    }
+
+    private static boolean isError(String message) {
+        if (message.length() >= MAX_ERROR_LENGTH) {
+            return false;
+        }
+        try {
+            JsonElement parsed = new JsonParser().parse(message);
+            return parsed.isJsonObject() && parsed.getAsJsonObject().has("error");
+        } catch (JsonParseException e) {
+            return true;
+        }
+    }
+}
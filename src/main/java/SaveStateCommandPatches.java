@@ -1,16 +1,38 @@
 import com.evacipated.cardcrawl.modthespire.lib.SpirePatch;
+import com.evacipated.cardcrawl.modthespire.lib.SpirePostfixPatch;
 import com.evacipated.cardcrawl.modthespire.lib.SpirePrefixPatch;
 import com.evacipated.cardcrawl.modthespire.lib.SpireReturn;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import communicationmod.CommandExecutor;
+import communicationmod.GameStateConverter;
 import communicationmod.InvalidCommandException;
 import savestate.SaveState;
+import transport.SaveStateTransfer;
+import transport.SocketServer;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
 
 import static communicationmod.CommandExecutor.getAvailableCommands;
 
 public class SaveStateCommandPatches {
-    public static HashMap<String, SaveState> savedStates = new HashMap<>();
+    private static final List<String> STORE_COMMANDS = Arrays.asList("stats", "pin", "unpin", "export", "import");
+
+    public static SaveStateStore savedStates = new SaveStateStore();
+    // Set by savestate stats, the next state carries the store's counters
+    static boolean statsRequested = false;
+    // Set by CommunicationModExtension with the SOCKET method, exports without a file go to its
+    // clients
+    static SocketServer socketServer = null;
+    // Set by CommunicationModExtension, export and import files are names inside it
+    static Path exportDirectory = Paths.get(ExtensionConfig.DEFAULT_SAVE_STATE_EXPORT_DIR);
 
     @SpirePatch(
             clz = CommandExecutor.class,
@@ -18,31 +40,219 @@ public class SaveStateCommandPatches {
     )
     public static class AlsoExecuteSaveAndLoadState {
         @SpirePrefixPatch
-        public static SpireReturn doMoreActions(String command) {
-            command = command.toLowerCase();
-            String[] tokens = command.split("\\s+");
-            if (tokens.length == 0) {
+        public static SpireReturn doMoreActions(String command) throws InvalidCommandException {
+            String verb = RunLogPatches.verb(command);
+            if (!verb.equals("savestate") && !verb.equals("loadstate")) {
                 return SpireReturn.Continue();
             }
 
-            if (getAvailableCommands().contains("play")) {
-                try {
-                    switch (tokens[0]) {
-                        case "savestate":
-                            executeSaveStateCommand(tokens);
-                            return SpireReturn.Return(true);
-                        case "loadstate":
-                            executeLoadStateCommand(tokens);
-                            return SpireReturn.Return(true);
-                        default:
-                            return SpireReturn.Continue();
-                    }
-                } catch (InvalidCommandException e) {
-                    // we'll let the normal behavior handle it
+            // Returning early skips the postfixes, so these are logged here with their outcome
+            boolean handled;
+            try {
+                handled = execute(command);
+            } catch (InvalidCommandException e) {
+                RunLogPatches.recordSaveStateCommand(command, false);
+                throw e;
+            }
+            RunLogPatches.recordSaveStateCommand(command, handled);
+            return handled ? SpireReturn.Return(true) : SpireReturn.Continue();
+        }
+    }
+
+    /**
+     * @return false if the game can't take the command now and the normal behavior should reject
+     * it
+     */
+    private static boolean execute(String command) throws InvalidCommandException {
+        // Bookkeeping that doesn't touch the game works on any screen
+        if (isStoreCommand(command)) {
+            // State names aren't case sensitive, file paths are
+            executeStoreCommand(command.trim().toLowerCase().split("\\s+"), command.trim().split("\\s+"));
+            return true;
+        }
+
+        String[] tokens = command.trim().toLowerCase().split("\\s+");
+        if (!getAvailableCommands().contains("play")) {
+            return false;
+        }
+
+        // Errors go to the client as they are, the normal behavior would only say the command is
+        // invalid
+        if (tokens[0].equals("savestate")) {
+            executeSaveStateCommand(tokens);
+        } else {
+            executeLoadStateCommand(tokens);
+        }
+        return true;
+    }
+
+    @SpirePatch(
+            clz = GameStateConverter.class,
+            method = "getCommunicationState"
+    )
+    public static class AddSaveStateStats {
+        @SpirePostfixPatch
+        public static String addStats(String state) {
+            if (!statsRequested) {
+                return state;
+            }
+
+            statsRequested = false;
+            JsonObject withStats = new JsonParser().parse(state).getAsJsonObject();
+            withStats.add("savestate_stats", savedStates.stats());
+            return withStats.toString();
+        }
+    }
+
+    /**
+     * savestate stats, pin, unpin, export and import, which manage the stored states rather than
+     * save the game.
+     */
+    static boolean isStoreCommand(String command) {
+        String[] tokens = command.trim().toLowerCase().split("\\s+");
+        return tokens.length >= 2 && tokens[0].equals("savestate") && STORE_COMMANDS.contains(tokens[1]);
+    }
+
+    /**
+     * savestate export and import without a file, which depend on a socket client and so can't
+     * be replayed.
+     */
+    static boolean usesClient(String command) {
+        String[] tokens = command.trim().toLowerCase().split("\\s+");
+        return isStoreCommand(command) && tokens.length == 3 && (tokens[1].equals("export") || tokens[1].equals("import"));
+    }
+
+    /**
+     * <pre>
+     *   savestate stats
+     *   savestate pin [statename]
+     *   savestate unpin [statename]
+     *   savestate export [statename] [file]
+     *   savestate import [statename] [file]
+     * </pre>
+     * Without a file, export sends the state to the socket clients that asked for save states and
+     * import takes the one a client uploaded under that name, see {@link SaveStateTransfer}. A file
+     * is a relative name inside {@link #exportDirectory}.
+     */
+    private static void executeStoreCommand(String[] tokens, String[] originalTokens) throws InvalidCommandException {
+        String verb = tokens[1];
+        boolean hasFile = tokens.length == 4 && (verb.equals("export") || verb.equals("import"));
+        if (tokens.length != (verb.equals("stats") ? 2 : 3) && !hasFile) {
+            throw new InvalidCommandException("Wrong number of arguments for savestate " + verb);
+        }
+
+        String name = tokens.length > 2 ? tokens[2] : null;
+        Path file = hasFile ? resolveSnapshotFile(originalTokens[3]) : null;
+        switch (verb) {
+            case "stats":
+                statsRequested = true;
+                System.err.println("save states " + savedStates.stats());
+                break;
+            case "pin":
+                savedStates.pin(name);
+                break;
+            case "unpin":
+                savedStates.unpin(name);
+                break;
+            case "export":
+                executeExportCommand(name, file);
+                break;
+            case "import":
+                executeImportCommand(name, file);
+                break;
+        }
+    }
+
+    /**
+     * Commands can come from any client, so they only name files inside the export directory:
+     * absolute names, .. and links are refused.
+     */
+    private static Path resolveSnapshotFile(String name) throws InvalidCommandException {
+        Path relative;
+        try {
+            relative = Paths.get(name);
+        } catch (InvalidPathException e) {
+            throw new InvalidCommandException("Bad file name " + name);
+        }
+        if (relative.isAbsolute() || relative.getRoot() != null) {
+            throw new InvalidCommandException("Save state files are relative to " + exportDirectory + ", not " + name);
+        }
+        for (Path part : relative) {
+            if (part.toString().equals("..")) {
+                throw new InvalidCommandException("Save state files can't leave " + exportDirectory + ", not " + name);
+            }
+        }
+
+        try {
+            Files.createDirectories(exportDirectory);
+            Path directory = exportDirectory.toRealPath();
+            Path file = directory.resolve(relative).normalize();
+            Path parent = file.getParent();
+            if (parent == null || !parent.startsWith(directory)) {
+                throw new InvalidCommandException("Save state files can't leave " + exportDirectory + ", not " + name);
+            }
+            for (Path path = file; !path.equals(directory); path = path.getParent()) {
+                if (Files.isSymbolicLink(path)) {
+                    throw new InvalidCommandException("Save state files can't go through links, not " + name);
+                }
+            }
+            Files.createDirectories(parent);
+            return file;
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new InvalidCommandException("Can't use " + name + " in " + exportDirectory + ": " + e.getMessage());
+        }
+    }
+
+    private static void executeExportCommand(String name, Path file) throws InvalidCommandException {
+        byte[] snapshot = savedStates.export(name);
+        if (snapshot == null) {
+            throw new InvalidCommandException("No state named " + name + ", it was never saved or has been evicted");
+        }
+
+        if (file != null) {
+            // Written aside and moved into place, so another game never reads half a snapshot
+            Path partial = file.resolveSibling(file.getFileName() + ".partial");
+            try {
+                Files.write(partial, snapshot);
+                Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new InvalidCommandException("Can't write " + file + ": " + e.getMessage());
+            }
+        } else if (socketServer == null || socketServer.sendSaveState(name, snapshot) == 0) {
+            throw new InvalidCommandException("No client to export " + name + " to, give a file or connect with the SAVESTATE feature");
+        }
+        System.err.println("state exported, " + snapshot.length + " bytes");
+    }
+
+    private static void executeImportCommand(String name, Path file) throws InvalidCommandException {
+        byte[] snapshot;
+        if (file != null) {
+            try {
+                long size = Files.size(file);
+                if (size > SaveStateTransfer.MAX_SNAPSHOT_BYTES) {
+                    throw new InvalidCommandException(file + " is " + size + " bytes, more than the " + SaveStateTransfer.MAX_SNAPSHOT_BYTES + " a snapshot may have");
                 }
+                snapshot = Files.readAllBytes(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new InvalidCommandException("Can't read " + file + ": " + e.getMessage());
             }
-            return SpireReturn.Continue();
+        } else {
+            snapshot = SaveStateTransfer.takeUpload(name);
+            if (snapshot == null) {
+                throw new InvalidCommandException("No save state named " + name + " was uploaded");
+            }
+        }
+
+        try {
+            savedStates.importState(name, snapshot);
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new InvalidCommandException(e.getMessage());
         }
+        System.err.println("state imported");
     }
 
     public static void executeSaveStateCommand(String[] tokens) throws InvalidCommandException {
@@ -59,9 +269,11 @@ public class SaveStateCommandPatches {
             throw new InvalidCommandException("Please specify a statename");
         }
 
-        if (savedStates.containsKey(tokens[1])) {
-            savedStates.get(tokens[1]).loadState();
-            System.err.println("state loaded");
+        SaveState state = savedStates.get(tokens[1]);
+        if (state == null) {
+            throw new InvalidCommandException("No state named " + tokens[1] + ", it was never saved or has been evicted");
         }
+        state.loadState();
+        System.err.println("state loaded");
     }
 }
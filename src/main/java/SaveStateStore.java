@@ -0,0 +1,590 @@
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.megacrit.cardcrawl.characters.AbstractPlayer;
+import com.megacrit.cardcrawl.dungeons.AbstractDungeon;
+import com.megacrit.cardcrawl.monsters.AbstractMonster;
+import com.megacrit.cardcrawl.rooms.AbstractRoom;
+import savestate.SaveState;
+import transport.SaveStateTransfer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The named save states, kept in three tiers so a search can hold far more branch points than
+ * fit on the heap next to the game:
+ * <ul>
+ *   <li>hot: live {@link SaveState}s on the heap, bounded by a number of entries and an estimate
+ *   of their size</li>
+ *   <li>warm: states the hot tier pushed out, encoded and deflated into blocks of one direct
+ *   arena allocated up front, off the heap and out of the garbage collector's way</li>
+ *   <li>cold: states the warm tier pushed out, written to memory-mapped segment files on local
+ *   disk</li>
+ * </ul>
+ * The hot tier pushes out its least recently saved or loaded states first. The warm blocks and
+ * cold segments are filled in turn and reused oldest first: the states left in a warm block move
+ * on to the cold tier, those left in a cold segment are dropped. Since a state only leaves the
+ * warm tier by being loaded or by age, that too is least recently used order. Space a loaded
+ * state took in a block or segment comes back when it's reused. Loading a warm or cold state
+ * decodes it back into the hot tier. Pinned names always stay hot and are never dropped: a
+ * pinned state can only be replaced by saving under its name again.
+ *
+ * Hot sizes are estimated from what the game holds when the state is saved, with rough
+ * per-object costs, or for an imported state from the length of its encoding; warm and cold sizes
+ * are exact. The arena counts against {@code -XX:MaxDirectMemorySize}, which defaults to the
+ * maximum heap size; if it can't be allocated the warm tier is turned off. Game thread only, like the commands that use it.
+ */
+public class SaveStateStore {
+    static final int DEFAULT_MAX_ENTRIES = 1000;
+    static final long DEFAULT_MAX_BYTES = 512L * 1024 * 1024;
+    static final long DEFAULT_MAX_WARM_BYTES = 256L * 1024 * 1024;
+    static final long DEFAULT_MAX_COLD_BYTES = 4096L * 1024 * 1024;
+    // Far past any real state, a snapshot that inflates further is refused rather than decoded
+    static final int MAX_ENCODED_BYTES = 256 * 1024 * 1024;
+
+    private static final long BASE_BYTES = 16 * 1024;
+    private static final long CARD_BYTES = 512;
+    private static final long MONSTER_BYTES = 4 * 1024;
+    private static final long RELIC_BYTES = 256;
+    private static final long POWER_BYTES = 128;
+
+    private static final int SEGMENT_BYTES = 64 * 1024 * 1024;
+    private static final int WARM_BLOCK_BYTES = 4 * 1024 * 1024;
+
+    // Access order, so iteration starts at the least recently used
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final HashMap<String, Packed> warm = new HashMap<>();
+    private final HashMap<String, Packed> cold = new HashMap<>();
+    private final HashSet<String> pinned = new HashSet<>();
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private long maxWarmBytes = DEFAULT_MAX_WARM_BYTES;
+    private long maxColdBytes = DEFAULT_MAX_COLD_BYTES;
+    private Path spillDirectory = new File(System.getProperty("java.io.tmpdir")).toPath();
+    private long bytes = 0;
+    private long warmBytes = 0;
+    private long coldBytes = 0;
+
+    private final ArrayList<Segment> segments = new ArrayList<>();
+    private int currentSegment = -1;
+    // Slices of one direct buffer, allocated with the first warm state
+    private final ArrayList<Segment> warmBlocks = new ArrayList<>();
+    private int currentWarmBlock = -1;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+    private final byte[] buffer = new byte[64 * 1024];
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long demotions = 0;
+    private long promotions = 0;
+
+    /**
+     * @param maxWarmBytes  0 turns the warm tier off
+     * @param maxColdBytes  0 turns the cold tier off
+     */
+    void setLimits(int maxEntries, long maxBytes, long maxWarmBytes, long maxColdBytes, Path spillDirectory) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.maxWarmBytes = maxWarmBytes;
+        this.maxColdBytes = maxColdBytes;
+        this.spillDirectory = spillDirectory;
+        if (!warmBlocks.isEmpty()) {
+            // The arena is sized for the old cap, its states go cold and a new one is allocated
+            for (Segment block : warmBlocks) {
+                spillBlock(block);
+            }
+            warmBlocks.clear();
+            currentWarmBlock = -1;
+        }
+        evict(null);
+    }
+
+    void put(String name, SaveState state) {
+        put(name, state, estimateCurrentGame());
+    }
+
+    private void put(String name, SaveState state, long estimate) {
+        remove(name);
+
+        Entry entry = new Entry(state, estimate);
+        entries.put(name, entry);
+        bytes += entry.bytes;
+        evict(name);
+    }
+
+    /**
+     * @return null if there is no state by that name, never saved or dropped
+     */
+    SaveState get(String name) {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            entry = promote(name);
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.state;
+    }
+
+    /**
+     * The state as a snapshot another game can import, the deflated encoding the warm and cold
+     * tiers hold. Doesn't count as a load.
+     *
+     * @return null if there is no state by that name
+     */
+    byte[] export(String name) {
+        Entry entry = entries.get(name);
+        if (entry != null) {
+            return compress(entry.state.encode());
+        }
+
+        Packed packed = warm.containsKey(name) ? warm.get(name) : cold.get(name);
+        return packed == null ? null : unpack(packed);
+    }
+
+    /**
+     * Decodes a snapshot made by {@link #export(String)}, possibly in another game, and saves it.
+     * Snapshots over {@link SaveStateTransfer#MAX_SNAPSHOT_BYTES} are refused undecoded.
+     */
+    void importState(String name, byte[] snapshot) throws IOException {
+        if (snapshot.length > SaveStateTransfer.MAX_SNAPSHOT_BYTES) {
+            throw new IOException("save state " + name + " is " + snapshot.length + " bytes, more than the " + SaveStateTransfer.MAX_SNAPSHOT_BYTES + " a snapshot may have");
+        }
+        String encoded = decompress(snapshot);
+        SaveState state;
+        try {
+            state = new SaveState(encoded);
+        } catch (RuntimeException e) {
+            throw new IOException("can't decode save state " + name, e);
+        }
+        // The game holds some other state now, so the size comes from the snapshot
+        put(name, state, estimateEncoded(encoded));
+    }
+
+    void pin(String name) {
+        pinned.add(name);
+        if (!entries.containsKey(name)) {
+            promote(name);
+        }
+    }
+
+    void unpin(String name) {
+        if (pinned.remove(name)) {
+            evict(null);
+        }
+    }
+
+    JsonObject stats() {
+        JsonArray pinnedNames = new JsonArray();
+        for (String name : pinned) {
+            pinnedNames.add(name);
+        }
+
+        JsonObject hot = new JsonObject();
+        hot.addProperty("entries", entries.size());
+        hot.addProperty("max_entries", maxEntries);
+        hot.addProperty("estimated_bytes", bytes);
+        hot.addProperty("max_bytes", maxBytes);
+
+        JsonObject warmStats = new JsonObject();
+        warmStats.addProperty("entries", warm.size());
+        warmStats.addProperty("bytes", warmBytes);
+        warmStats.addProperty("max_bytes", maxWarmBytes);
+        warmStats.addProperty("blocks", warmBlocks.size());
+
+        JsonObject coldStats = new JsonObject();
+        coldStats.addProperty("entries", cold.size());
+        coldStats.addProperty("bytes", coldBytes);
+        coldStats.addProperty("max_bytes", maxColdBytes);
+        coldStats.addProperty("segments", segments.size());
+
+        JsonObject stats = new JsonObject();
+        stats.addProperty("entries", entries.size() + warm.size() + cold.size());
+        stats.add("hot", hot);
+        stats.add("warm", warmStats);
+        stats.add("cold", coldStats);
+        stats.addProperty("hits", hits);
+        stats.addProperty("misses", misses);
+        stats.addProperty("evictions", evictions);
+        stats.addProperty("demotions", demotions);
+        stats.addProperty("promotions", promotions);
+        stats.add("pinned", pinnedNames);
+        return stats;
+    }
+
+    private void remove(String name) {
+        Entry previous = entries.remove(name);
+        if (previous != null) {
+            bytes -= previous.bytes;
+        }
+
+        Packed packed = warm.remove(name);
+        if (packed != null) {
+            warmBytes -= packed.length;
+            packed.segment.names.remove(name);
+        }
+
+        packed = cold.remove(name);
+        if (packed != null) {
+            coldBytes -= packed.length;
+            packed.segment.names.remove(name);
+        }
+    }
+
+    /**
+     * Moves least recently used states down to the warm tier until both hot caps hold, keeping
+     * pinned names and the state just saved or loaded.
+     */
+    private void evict(String keep) {
+        ArrayList<Map.Entry<String, Entry>> demoted = new ArrayList<>();
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && eldest.hasNext()) {
+            Map.Entry<String, Entry> next = eldest.next();
+            if (pinned.contains(next.getKey()) || next.getKey().equals(keep)) {
+                continue;
+            }
+            eldest.remove();
+            bytes -= next.getValue().bytes;
+            demoted.add(next);
+        }
+
+        for (Map.Entry<String, Entry> next : demoted) {
+            demote(next.getKey(), next.getValue());
+        }
+    }
+
+    private void demote(String name, Entry entry) {
+        if (maxWarmBytes == 0 && maxColdBytes == 0) {
+            evictions++;
+            return;
+        }
+
+        byte[] compressed;
+        try {
+            compressed = compress(entry.state.encode());
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            evictions++;
+            return;
+        }
+        demotions++;
+
+        Segment block = maxWarmBytes > 0 ? room(warmBlocks, currentWarmBlock, compressed.length) : null;
+        if (block == null && maxWarmBytes > 0) {
+            block = nextWarmBlock(compressed.length);
+        }
+        if (block == null) {
+            spill(name, compressed, entry.bytes);
+            return;
+        }
+
+        warm.put(name, append(block, name, compressed, entry.bytes));
+        warmBytes += compressed.length;
+    }
+
+    private void spill(String name, byte[] compressed, long estimate) {
+        if (maxColdBytes == 0) {
+            evictions++;
+            return;
+        }
+
+        Segment segment = room(segments, currentSegment, compressed.length);
+        if (segment == null) {
+            segment = nextSegment(compressed.length);
+            if (segment == null) {
+                evictions++;
+                return;
+            }
+        }
+
+        cold.put(name, append(segment, name, compressed, estimate));
+        coldBytes += compressed.length;
+    }
+
+    /**
+     * @return the current block or segment if it has room left for the state, else null
+     */
+    private static Segment room(ArrayList<Segment> all, int current, int length) {
+        if (current < 0) {
+            return null;
+        }
+        Segment segment = all.get(current);
+        return segment.position + length <= segment.buffer.capacity() ? segment : null;
+    }
+
+    private static Packed append(Segment segment, String name, byte[] compressed, long estimate) {
+        ByteBuffer target = segment.buffer.duplicate();
+        target.position(segment.position);
+        target.put(compressed);
+        Packed packed = new Packed(segment, segment.position, compressed.length, estimate);
+        segment.names.add(name);
+        segment.position += compressed.length;
+        return packed;
+    }
+
+    /**
+     * Allocates the arena with the first warm state, then empties the oldest block, moving the
+     * states still in it to the cold tier.
+     *
+     * @return null if the state is larger than a block or there's no arena
+     */
+    private Segment nextWarmBlock(int length) {
+        int blockBytes = (int) Math.min(WARM_BLOCK_BYTES, maxWarmBytes);
+        if (length > blockBytes) {
+            return null;
+        }
+
+        if (warmBlocks.isEmpty()) {
+            int blocks = (int) Math.max(1, Math.min(Integer.MAX_VALUE / blockBytes, maxWarmBytes / blockBytes));
+            ByteBuffer arena;
+            try {
+                arena = ByteBuffer.allocateDirect(blocks * blockBytes);
+            } catch (OutOfMemoryError e) {
+                System.err.println("can't allocate " + blocks * blockBytes + " bytes of direct memory for save states, spilling them to disk instead");
+                maxWarmBytes = 0;
+                return null;
+            }
+            for (int i = 0; i < blocks; i++) {
+                ByteBuffer slice = arena.duplicate();
+                slice.position(i * blockBytes).limit((i + 1) * blockBytes);
+                warmBlocks.add(new Segment(slice.slice()));
+            }
+            currentWarmBlock = 0;
+            return warmBlocks.get(0);
+        }
+
+        int next = (currentWarmBlock + 1) % warmBlocks.size();
+        Segment block = warmBlocks.get(next);
+        spillBlock(block);
+        currentWarmBlock = next;
+        return block;
+    }
+
+    private void spillBlock(Segment block) {
+        for (String name : block.names) {
+            Packed packed = warm.remove(name);
+            warmBytes -= packed.length;
+            spill(name, unpack(packed), packed.estimate);
+        }
+        block.names.clear();
+        block.position = 0;
+    }
+
+    /**
+     * Maps a new segment while under the cold cap, or else empties the oldest one, dropping the
+     * states still in it. Segments are as large as the cap allows, up to 64MB.
+     *
+     * @return null if the state is larger than a segment or spilling failed
+     */
+    private Segment nextSegment(int length) {
+        int segmentBytes = (int) Math.min(SEGMENT_BYTES, maxColdBytes);
+        if (length > segmentBytes) {
+            return null;
+        }
+
+        int maxSegments = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxColdBytes / segmentBytes));
+        int next = (currentSegment + 1) % maxSegments;
+        if (next < segments.size() && segments.get(next).buffer.capacity() == segmentBytes) {
+            Segment segment = segments.get(next);
+            for (String name : segment.names) {
+                coldBytes -= cold.remove(name).length;
+                evictions++;
+            }
+            segment.names.clear();
+            segment.position = 0;
+            currentSegment = next;
+            return segment;
+        }
+
+        try {
+            Files.createDirectories(spillDirectory);
+            Path path = Files.createTempFile(spillDirectory, "savestates-", ".bin");
+            path.toFile().deleteOnExit();
+            MappedByteBuffer mapped;
+            try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+                file.setLength(segmentBytes);
+                // The mapping outlives the channel
+                mapped = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+            }
+            Segment segment = new Segment(mapped);
+            if (next < segments.size()) {
+                // Mapped under another cap, its states are dropped with it
+                for (String name : segments.get(next).names) {
+                    coldBytes -= cold.remove(name).length;
+                    evictions++;
+                }
+                segments.set(next, segment);
+            } else {
+                segments.add(segment);
+                next = segments.size() - 1;
+            }
+            currentSegment = next;
+            return segment;
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("can't spill save states to " + spillDirectory + ", dropping them instead");
+            maxColdBytes = 0;
+            return null;
+        }
+    }
+
+    /**
+     * Decodes a warm or cold state back into the hot tier.
+     *
+     * @return null if neither tier holds the name
+     */
+    private Entry promote(String name) {
+        Packed packed = warm.containsKey(name) ? warm.get(name) : cold.get(name);
+        if (packed == null) {
+            return null;
+        }
+
+        SaveState state;
+        try {
+            state = new SaveState(decompress(unpack(packed)));
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            remove(name);
+            evictions++;
+            return null;
+        }
+
+        remove(name);
+        Entry entry = new Entry(state, packed.estimate);
+        entries.put(name, entry);
+        bytes += entry.bytes;
+        promotions++;
+        evict(name);
+        return entry;
+    }
+
+    private static byte[] unpack(Packed packed) {
+        byte[] compressed = new byte[packed.length];
+        ByteBuffer source = packed.segment.buffer.duplicate();
+        source.position(packed.offset);
+        source.get(compressed);
+        return compressed;
+    }
+
+    private byte[] compress(String encoded) {
+        byte[] input = encoded.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 8 + 64);
+        deflater.reset();
+        deflater.setInput(input);
+        deflater.finish();
+        while (!deflater.finished()) {
+            int written = deflater.deflate(buffer);
+            out.write(buffer, 0, written);
+        }
+        return out.toByteArray();
+    }
+
+    private String decompress(byte[] compressed) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(compressed.length * 8, MAX_ENCODED_BYTES));
+        inflater.reset();
+        inflater.setInput(compressed);
+        try {
+            while (!inflater.finished()) {
+                int read = inflater.inflate(buffer);
+                if (read == 0 && inflater.needsInput()) {
+                    throw new IOException("truncated save state");
+                }
+                if (out.size() + read > MAX_ENCODED_BYTES) {
+                    throw new IOException("save state inflates past " + MAX_ENCODED_BYTES + " bytes");
+                }
+                out.write(buffer, 0, read);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt save state", e);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A decoded state takes about as much of the heap as its encoding does as a string.
+     */
+    private static long estimateEncoded(String encoded) {
+        return BASE_BYTES + 2L * encoded.length();
+    }
+
+    private static long estimateCurrentGame() {
+        long estimate = BASE_BYTES;
+        AbstractPlayer player = AbstractDungeon.player;
+        if (player == null) {
+            return estimate;
+        }
+
+        int cards = player.masterDeck.size() + player.hand.size() + player.drawPile
+                .size() + player.discardPile.size() + player.exhaustPile.size();
+        estimate += cards * CARD_BYTES + player.relics.size() * RELIC_BYTES + player.powers
+                .size() * POWER_BYTES;
+
+        AbstractRoom room = AbstractDungeon.currMapNode == null ? null : AbstractDungeon.getCurrRoom();
+        if (room != null && room.monsters != null) {
+            for (AbstractMonster monster : room.monsters.monsters) {
+                estimate += MONSTER_BYTES + monster.powers.size() * POWER_BYTES;
+            }
+        }
+        return estimate;
+    }
+
+    private static class Entry {
+        final SaveState state;
+        final long bytes;
+
+        Entry(SaveState state, long bytes) {
+            this.state = state;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * A deflated, encoded state at an offset in a warm block or a cold segment.
+     */
+    private static class Packed {
+        final Segment segment;
+        final int offset;
+        final int length;
+        // The hot tier's estimate, carried along for when the state is promoted again
+        final long estimate;
+
+        Packed(Segment segment, int offset, int length, long estimate) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.estimate = estimate;
+        }
+    }
+
+    private static class Segment {
+        final ByteBuffer buffer;
+        final HashSet<String> names = new HashSet<>();
+        int position = 0;
+
+        Segment(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+}
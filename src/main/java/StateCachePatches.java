@@ -0,0 +1,73 @@
+import com.evacipated.cardcrawl.modthespire.lib.SpirePatch;
+import com.evacipated.cardcrawl.modthespire.lib.SpirePostfixPatch;
+import com.evacipated.cardcrawl.modthespire.lib.SpirePrefixPatch;
+import com.evacipated.cardcrawl.modthespire.lib.SpireReturn;
+import com.megacrit.cardcrawl.actions.GameActionManager;
+import com.megacrit.cardcrawl.dungeons.AbstractDungeon;
+import communicationmod.CommandExecutor;
+import communicationmod.GameStateConverter;
+import transport.StepTimer;
+
+/**
+ * Hands out the last serialized state again while nothing it depends on has changed, so asking
+ * for the state twice doesn't serialize the whole game twice.
+ *
+ * The cache is keyed on a {@link StateFingerprint} of the game plus whether the action queue is
+ * idle, and is dropped whenever a command executes, since commands are what usually change
+ * parts of the state the fingerprint doesn't cover. Game thread only, like the converter.
+ */
+public class StateCachePatches {
+    private static String cachedState = null;
+    private static long cachedFingerprint = 0;
+    // Taken in the prefix for the postfix to store with the state
+    private static long pendingFingerprint = 0;
+
+    public static long hits = 0;
+    public static long misses = 0;
+
+    @SpirePatch(
+            clz = GameStateConverter.class,
+            method = "getCommunicationState"
+    )
+    public static class CacheState {
+        @SpirePrefixPatch
+        public static SpireReturn useCached() {
+            long fingerprint = fingerprint();
+            if (cachedState != null && fingerprint == cachedFingerprint) {
+                hits++;
+                // The serialization is skipped, but timing clients still get this step's state
+                StepTimer.stateStarted();
+                StepTimer.stateProduced(cachedState);
+                return SpireReturn.Return(cachedState);
+            }
+
+            misses++;
+            pendingFingerprint = fingerprint;
+            return SpireReturn.Continue();
+        }
+
+        @SpirePostfixPatch
+        public static String store(String state) {
+            cachedState = state;
+            cachedFingerprint = pendingFingerprint;
+            return state;
+        }
+    }
+
+    @SpirePatch(
+            clz = CommandExecutor.class,
+            method = "executeCommand"
+    )
+    public static class InvalidateOnCommand {
+        @SpirePrefixPatch
+        public static void invalidate(String command) {
+            cachedState = null;
+        }
+    }
+
+    private static long fingerprint() {
+        GameActionManager actionManager = AbstractDungeon.actionManager;
+        boolean idle = actionManager == null || (actionManager.actions.isEmpty() && actionManager.currentAction == null);
+        return 31 * StateFingerprint.of(CommandExecutor.getAvailableCommands()) + (idle ? 1 : 0);
+    }
+}
@@ -0,0 +1,124 @@
+import com.megacrit.cardcrawl.actions.GameActionManager;
+import com.megacrit.cardcrawl.cards.AbstractCard;
+import com.megacrit.cardcrawl.characters.AbstractPlayer;
+import com.megacrit.cardcrawl.core.CardCrawlGame;
+import com.megacrit.cardcrawl.dungeons.AbstractDungeon;
+import com.megacrit.cardcrawl.monsters.AbstractMonster;
+import com.megacrit.cardcrawl.potions.AbstractPotion;
+import com.megacrit.cardcrawl.powers.AbstractPower;
+import com.megacrit.cardcrawl.random.Random;
+import com.megacrit.cardcrawl.rooms.AbstractRoom;
+import com.megacrit.cardcrawl.ui.panels.EnergyPanel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hash of the parts of the game an agent reacts to, read straight from the game's fields so it
+ * costs a fraction of serializing the state. Two equal fingerprints are taken to mean the state
+ * sent last is still current.
+ *
+ * The available commands and the RNG counters catch most changes not listed explicitly: anything
+ * random advances a counter, and a new screen or choice changes what the agent may do. What a
+ * screen shows isn't hashed beyond the number of cards picked on it, so commands working a
+ * screen shouldn't rely on the fingerprint.
+ */
+class StateFingerprint {
+    private long hash = 17;
+
+    static long of(List<String> availableCommands) {
+        StateFingerprint fingerprint = new StateFingerprint();
+        fingerprint.add(availableCommands.hashCode());
+        fingerprint.add(CardCrawlGame.mode == null ? -1 : CardCrawlGame.mode.ordinal());
+
+        AbstractPlayer player = AbstractDungeon.player;
+        if (CardCrawlGame.mode != CardCrawlGame.GameMode.GAMEPLAY || player == null || AbstractDungeon.currMapNode == null) {
+            return fingerprint.hash;
+        }
+
+        fingerprint.add(AbstractDungeon.floorNum);
+        fingerprint.add(AbstractDungeon.currMapNode.x);
+        fingerprint.add(AbstractDungeon.currMapNode.y);
+        fingerprint.add(AbstractDungeon.screen == null ? -1 : AbstractDungeon.screen.ordinal());
+        fingerprint.add(AbstractDungeon.isScreenUp ? 1 : 0);
+        AbstractRoom room = AbstractDungeon.getCurrRoom();
+        fingerprint.add(room == null || room.phase == null ? -1 : room.phase.ordinal());
+        fingerprint.add(room == null ? -1 : room.rewards.size());
+        // Picks on a selection screen that aren't confirmed yet
+        fingerprint.add(AbstractDungeon.gridSelectScreen == null ? -1 : AbstractDungeon.gridSelectScreen.selectedCards.size());
+        fingerprint.add(AbstractDungeon.handCardSelectScreen == null ? -1 : AbstractDungeon.handCardSelectScreen.selectedCards.size());
+
+        fingerprint.add(counter(AbstractDungeon.cardRandomRng));
+        fingerprint.add(counter(AbstractDungeon.monsterRng));
+        fingerprint.add(counter(AbstractDungeon.aiRng));
+        fingerprint.add(counter(AbstractDungeon.miscRng));
+        fingerprint.add(counter(AbstractDungeon.eventRng));
+        fingerprint.add(counter(AbstractDungeon.merchantRng));
+        fingerprint.add(counter(AbstractDungeon.treasureRng));
+        fingerprint.add(counter(AbstractDungeon.relicRng));
+        fingerprint.add(counter(AbstractDungeon.potionRng));
+        fingerprint.add(counter(AbstractDungeon.shuffleRng));
+        fingerprint.add(counter(AbstractDungeon.cardRng));
+
+        fingerprint.add(player.currentHealth);
+        fingerprint.add(player.maxHealth);
+        fingerprint.add(player.currentBlock);
+        fingerprint.add(player.gold);
+        fingerprint.add(EnergyPanel.totalCount);
+        fingerprint.add(player.relics.size());
+        fingerprint.addPowers(player.powers);
+        for (AbstractPotion potion : player.potions) {
+            fingerprint.add(potion.ID.hashCode());
+        }
+        fingerprint.addCards(player.hand.group);
+        fingerprint.add(player.drawPile.size());
+        fingerprint.add(player.discardPile.size());
+        fingerprint.add(player.exhaustPile.size());
+        fingerprint.add(player.masterDeck.size());
+
+        GameActionManager actionManager = AbstractDungeon.actionManager;
+        if (actionManager != null) {
+            fingerprint.add(GameActionManager.turn);
+            fingerprint.add(actionManager.cardsPlayedThisCombat.size());
+        }
+
+        if (room != null && room.phase == AbstractRoom.RoomPhase.COMBAT && room.monsters != null) {
+            for (AbstractMonster monster : room.monsters.monsters) {
+                fingerprint.add(monster.currentHealth);
+                fingerprint.add(monster.currentBlock);
+                fingerprint.add(monster.isDeadOrEscaped() ? 1 : 0);
+                fingerprint.add(monster.intent == null ? -1 : monster.intent.ordinal());
+                fingerprint.addPowers(monster.powers);
+            }
+        }
+        return fingerprint.hash;
+    }
+
+    private void add(int value) {
+        hash = 31 * hash + value;
+    }
+
+    private void addPowers(ArrayList<AbstractPower> powers) {
+        add(powers.size());
+        for (AbstractPower power : powers) {
+            add(power.ID.hashCode());
+            add(power.amount);
+        }
+    }
+
+    private void addCards(ArrayList<AbstractCard> cards) {
+        add(cards.size());
+        for (AbstractCard card : cards) {
+            add(card.uuid.hashCode());
+            add(card.costForTurn);
+            add(card.timesUpgraded);
+            add(card.damage);
+            add(card.block);
+            add(card.magicNumber);
+        }
+    }
+
+    private static int counter(Random random) {
+        return random == null ? -1 : random.counter;
+    }
+}
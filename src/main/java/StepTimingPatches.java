@@ -0,0 +1,46 @@
+import com.evacipated.cardcrawl.modthespire.lib.SpirePatch;
+import com.evacipated.cardcrawl.modthespire.lib.SpirePostfixPatch;
+import com.evacipated.cardcrawl.modthespire.lib.SpirePrefixPatch;
+import communicationmod.CommandExecutor;
+import communicationmod.GameStateConverter;
+import transport.StepTimer;
+
+/**
+ * Stamps the game thread's part of a step for clients that asked for timings, see
+ * {@link StepTimer}.
+ */
+public class StepTimingPatches {
+    @SpirePatch(
+            clz = CommandExecutor.class,
+            method = "executeCommand"
+    )
+    public static class TimeCommandExecution {
+        @SpirePrefixPatch
+        public static void executeStarted(String command) {
+            StepTimer.executeStarted(command);
+        }
+
+        // Not reached when the command throws, the error it leads to isn't timed
+        @SpirePostfixPatch
+        public static void executeFinished(String command) {
+            StepTimer.executeFinished();
+        }
+    }
+
+    @SpirePatch(
+            clz = GameStateConverter.class,
+            method = "getCommunicationState"
+    )
+    public static class TimeStateSerialization {
+        @SpirePrefixPatch
+        public static void stateStarted() {
+            StepTimer.stateStarted();
+        }
+
+        @SpirePostfixPatch
+        public static String stateProduced(String state) {
+            StepTimer.stateProduced(state);
+            return state;
+        }
+    }
+}
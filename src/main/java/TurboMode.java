@@ -0,0 +1,83 @@
+import basemod.BaseMod;
+import com.megacrit.cardcrawl.core.CardCrawlGame;
+import com.megacrit.cardcrawl.core.Settings;
+import com.megacrit.cardcrawl.dungeons.AbstractDungeon;
+import ludicrousspeed.Controller;
+import ludicrousspeed.LudicrousSpeedMod;
+import savestate.SaveStateMod;
+
+/**
+ * Runs the game as fast as it goes for headless episodes: LudicrousSpeed's plaid mode skips
+ * rendering, audio is muted, actions take next to no time and the given controller feeds
+ * commands to the game from inside the update loop instead of CommunicationMod.
+ *
+ * Every {@link #REPORT_INTERVAL_MILLIS} the floors climbed per second are printed, which is the
+ * number that decides how many episodes a machine gets through.
+ */
+class TurboMode {
+    static final long REPORT_INTERVAL_MILLIS = 30_000;
+
+    static void enable(Controller controller) {
+        BaseMod.subscribe(new LudicrousSpeedMod());
+        Settings.MASTER_VOLUME = 0;
+        CardCrawlGame.sound.update();
+        Settings.isDemo = true;
+        SaveStateMod.shouldGoFast = true;
+        LudicrousSpeedMod.plaidMode = true;
+
+        Settings.ACTION_DUR_XFAST = 0.001F;
+        Settings.ACTION_DUR_FASTER = 0.002F;
+        Settings.ACTION_DUR_FAST = 0.0025F;
+        Settings.ACTION_DUR_MED = 0.005F;
+        Settings.ACTION_DUR_LONG = .01F;
+        Settings.ACTION_DUR_XLONG = .015F;
+
+        LudicrousSpeedMod.controller = new FloorCounter(controller);
+        System.err.println("turbo mode on");
+    }
+
+    /**
+     * Counts floors and runs on the game thread between the steps of the controller it wraps.
+     */
+    private static class FloorCounter implements Controller {
+        private final Controller controller;
+
+        private int lastFloor = 0;
+        private long floors = 0;
+        private long runs = 0;
+        private long reportFloors = 0;
+        private long reportStartMillis = System.currentTimeMillis();
+
+        FloorCounter(Controller controller) {
+            this.controller = controller;
+        }
+
+        @Override
+        public void step() {
+            controller.step();
+
+            int floor = AbstractDungeon.floorNum;
+            if (floor > lastFloor) {
+                floors += floor - lastFloor;
+            } else if (floor < lastFloor) {
+                // Back to the start, the last run is over
+                runs++;
+            }
+            lastFloor = floor;
+
+            long now = System.currentTimeMillis();
+            if (now - reportStartMillis >= REPORT_INTERVAL_MILLIS) {
+                double seconds = (now - reportStartMillis) / 1000.0;
+                long states = StateCachePatches.hits + StateCachePatches.misses;
+                System.err.println(String.format("turbo: %.2f floors/s, %d floors and %d runs so far, %d%% of states from the cache", (floors - reportFloors) / seconds, floors, runs, states == 0 ? 0 : 100 * StateCachePatches.hits / states));
+                reportFloors = floors;
+                reportStartMillis = now;
+            }
+        }
+
+        @Override
+        public boolean isDone() {
+            return controller.isDone();
+        }
+    }
+}
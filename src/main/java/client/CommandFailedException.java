@@ -0,0 +1,20 @@
+package client;
+
+import transport.Protocol;
+
+/**
+ * Completes the future of a command the game rejected, or that was skipped because an earlier
+ * command of the same batch was rejected.
+ */
+public class CommandFailedException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public final String command;
+    public final boolean skipped;
+
+    CommandFailedException(String command, byte status, String message) {
+        super(command + ": " + message);
+        this.command = command;
+        this.skipped = status == Protocol.ACK_SKIPPED;
+    }
+}
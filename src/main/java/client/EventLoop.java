@@ -0,0 +1,192 @@
+package client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single selector thread that any number of {@link GameClient}s share, so driving many games
+ * from one JVM doesn't take a thread per connection. All channel I/O, frame decoding and
+ * callbacks of the clients on a loop run on its thread, so callbacks must not block.
+ *
+ * A handler that throws fails on its own, without taking the loop or the other clients down.
+ * Closing the loop closes its clients too, failing whatever they still had pending.
+ */
+public class EventLoop implements Closeable {
+    interface Handler {
+        void handle(SelectionKey key) throws IOException;
+
+        void failed(IOException e);
+    }
+
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final CopyOnWriteArrayList<Closeable> clients = new CopyOnWriteArrayList<>();
+    // Loop thread only
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+    private final AtomicLong timerOrder = new AtomicLong();
+    private volatile boolean closed = false;
+    private volatile boolean finished = false;
+
+    public EventLoop() throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this::run, "game-client-loop");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Runs the task on the loop thread, right away if called from it.
+     */
+    public void execute(Runnable task) {
+        if (Thread.currentThread() == thread) {
+            task.run();
+            return;
+        }
+        tasks.add(task);
+        selector.wakeup();
+        if (finished) {
+            // Nothing would run it anymore
+            runPending();
+        }
+    }
+
+    public void schedule(Runnable task, long delayMillis) {
+        execute(() -> timers.add(new Timer(System.currentTimeMillis() + delayMillis, timerOrder
+                .getAndIncrement(), task)));
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Closed on the loop thread when the loop is.
+     */
+    void attach(Closeable client) {
+        clients.add(client);
+    }
+
+    void detach(Closeable client) {
+        clients.remove(client);
+    }
+
+    /**
+     * Must be called on the loop thread.
+     */
+    SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws IOException {
+        return channel.register(selector, ops, handler);
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                long timeout = 0;
+                Timer next = timers.peek();
+                if (next != null) {
+                    timeout = Math.max(1, next.at - System.currentTimeMillis());
+                }
+                if (tasks.isEmpty()) {
+                    selector.select(timeout);
+                } else {
+                    selector.selectNow();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    Handler handler = (Handler) key.attachment();
+                    try {
+                        if (key.isValid()) {
+                            handler.handle(key);
+                        }
+                    } catch (IOException e) {
+                        handler.failed(e);
+                    } catch (RuntimeException e) {
+                        // A malformed frame or a throwing callback, only that handler's connection is lost
+                        handler.failed(new IOException(e));
+                    }
+                }
+
+                runPending();
+
+                long now = System.currentTimeMillis();
+                while ((next = timers.peek()) != null && next.at <= now) {
+                    timers.poll();
+                    runSafely(next.task);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        for (Closeable client : clients) {
+            try {
+                client.close();
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        // Sends that raced with closing fail here instead of waiting forever
+        runPending();
+        finished = true;
+        runPending();
+
+        try {
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void runPending() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            runSafely(task);
+        }
+    }
+
+    private static void runSafely(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static class Timer implements Comparable<Timer> {
+        final long at;
+        final long order;
+        final Runnable task;
+
+        Timer(long at, long order, Runnable task) {
+            this.at = at;
+            this.order = order;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return at != other.at ? Long.compare(at, other.at) : Long.compare(order, other.order);
+        }
+    }
+}
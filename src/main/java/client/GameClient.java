@@ -0,0 +1,606 @@
+package client;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import transport.BinaryStateDecoder;
+import transport.Compression;
+import transport.Protocol;
+import transport.SaveStateTransfer;
+import transport.StateDiff;
+import transport.StepTiming;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Asynchronous connection to one game's {@link transport.SocketServer}.
+ *
+ * Commands are pipelined through BATCH frames: commands sent while earlier ones are still running
+ * are written right away and the server feeds them to the game one at a time. The future of a
+ * command completes with the state it led to, or fails with a {@link CommandFailedException}.
+ * Every state and message the game sends, whether it answers this client's commands or not, also
+ * goes to the {@link #subscribe(Consumer)} listeners.
+ *
+ * The state a command leads to normally arrives like any other, as a delta when those were
+ * negotiated, and the command's ACK only completes its future. Commands sent with ackWithState
+ * have the server put the whole state in the ACK instead, which saves a frame but not bytes.
+ *
+ * Deltas, compression and binary encoding are negotiated in the HELLO and undone here, so callers
+ * only ever see JSON text. When the connection drops the client reconnects with growing delays
+ * and resumes its session. Commands the server had already received then fail with an
+ * IOException, since there's no telling whether they ran; those not written yet are sent once
+ * the client is back.
+ *
+ * At most maxPendingCommands commands may be unanswered at a time. Further sends fail right away
+ * with a RejectedExecutionException, callers that produce commands faster than the game runs them
+ * should watch {@link #pendingCommands()}.
+ *
+ * Clients created with {@link Protocol#FEATURE_TIMING} also hand the server's timing of each state
+ * they receive to the {@link #onTiming(Consumer)} listeners, right after the state itself.
+ *
+ * Clients created with {@link Protocol#FEATURE_SAVESTATE} hand the snapshots of the game's
+ * {@code savestate export} commands to the {@link #onSaveState(BiConsumer)} listeners, before the
+ * command's answer. {@link #importSaveState(String, byte[])} uploads a snapshot, from this game or
+ * another, and imports it.
+ *
+ * Futures and listeners are completed on the {@link EventLoop}'s thread and must not block it.
+ */
+public class GameClient implements Closeable {
+    public static final int DEFAULT_FEATURES = Protocol.FEATURE_DELTA | Protocol.FEATURE_DEFLATE | Protocol.FEATURE_RESUME;
+    public static final int DEFAULT_MAX_PENDING_COMMANDS = 1024;
+
+    private static final long MIN_RECONNECT_DELAY_MILLIS = 100;
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 5_000;
+    private static final int INITIAL_READ_BUFFER_SIZE = 64 * 1024;
+
+    private final EventLoop loop;
+    private final InetSocketAddress address;
+    private final int requestedFeatures;
+    private final int maxPendingCommands;
+
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final CopyOnWriteArrayList<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<Consumer<StepTiming>> timingListeners = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<BiConsumer<String, byte[]>> saveStateListeners = new CopyOnWriteArrayList<>();
+    private final CompletableFuture<GameClient> connected = new CompletableFuture<>();
+    private volatile boolean closed = false;
+
+    private final EventLoop.Handler handler = new EventLoop.Handler() {
+        @Override
+        public void handle(SelectionKey key) throws IOException {
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                onConnected();
+            }
+            if (key.isValid() && key.isReadable()) {
+                read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                write();
+            }
+        }
+
+        @Override
+        public void failed(IOException e) {
+            connectionLost(e);
+        }
+    };
+
+    // Everything below belongs to the loop thread
+    private final ArrayDeque<List<Command>> unsent = new ArrayDeque<>();
+    private final HashMap<Long, Command> sent = new HashMap<>();
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    private SocketChannel channel = null;
+    private SelectionKey key = null;
+    private ByteBuffer inbound = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+    private boolean ready = false;
+    private int features = 0;
+    private long sessionId = 0;
+    private long reconnectDelay = MIN_RECONNECT_DELAY_MILLIS;
+    private Compression.Decompressor decompressor = null;
+    private BinaryStateDecoder binaryDecoder = null;
+
+    // The last state received, which deltas apply to
+    private JsonElement state = null;
+    private long stateSeq = 0;
+    private boolean resyncRequested = false;
+    // The last message handed to the listeners, which answers a command acked without its state
+    private String lastMessage = null;
+
+    public GameClient(EventLoop loop, InetSocketAddress address) {
+        this(loop, address, DEFAULT_FEATURES, DEFAULT_MAX_PENDING_COMMANDS);
+    }
+
+    /**
+     * @param features the {@link Protocol} features to ask for, the server may grant fewer
+     */
+    public GameClient(EventLoop loop, InetSocketAddress address, int features, int maxPendingCommands) {
+        this.loop = loop;
+        this.address = address;
+        this.requestedFeatures = features;
+        this.maxPendingCommands = maxPendingCommands;
+    }
+
+    /**
+     * Starts connecting, retrying until the server answers.
+     *
+     * @return completes once the first handshake is done
+     */
+    public CompletableFuture<GameClient> connect() {
+        loop.attach(this);
+        loop.execute(this::open);
+        return connected;
+    }
+
+    public void subscribe(Consumer<String> listener) {
+        listeners.add(listener);
+    }
+
+    public void unsubscribe(Consumer<String> listener) {
+        listeners.remove(listener);
+    }
+
+    public void onTiming(Consumer<StepTiming> listener) {
+        timingListeners.add(listener);
+    }
+
+    /**
+     * @param listener takes the name and the snapshot of each exported state
+     */
+    public void onSaveState(BiConsumer<String, byte[]> listener) {
+        saveStateListeners.add(listener);
+    }
+
+    /**
+     * Uploads a snapshot in a SAVESTATE frame and sends the {@code savestate import} command that
+     * stores it under the name. The upload is lost if the connection isn't up, and the command
+     * then fails.
+     */
+    public CompletableFuture<String> importSaveState(String name, byte[] snapshot) {
+        byte[] payload = SaveStateTransfer.payload(name, snapshot);
+        loop.execute(() -> {
+            if (!ready) {
+                return;
+            }
+            try {
+                writeFrame(Protocol.FRAME_SAVESTATE, payload);
+            } catch (IOException e) {
+                connectionLost(e);
+            }
+        });
+        return send("savestate import " + name);
+    }
+
+    public CompletableFuture<String> send(String command) {
+        return sendBatch(Collections.singletonList(command)).get(0);
+    }
+
+    public List<CompletableFuture<String>> sendBatch(List<String> commands) {
+        return sendBatch(commands, false);
+    }
+
+    /**
+     * Sends commands that only make sense together, such as the plays of one turn: once one of
+     * them fails, the rest are skipped.
+     *
+     * @param ackWithState whether the server should send each resulting state in the command's
+     *                     ACK rather than in a frame of its own
+     */
+    public List<CompletableFuture<String>> sendBatch(List<String> commands, boolean ackWithState) {
+        ArrayList<CompletableFuture<String>> futures = new ArrayList<>();
+        Exception refused = null;
+        if (closed) {
+            refused = new IOException("client closed");
+        } else if (pendingCount.addAndGet(commands.size()) > maxPendingCommands) {
+            pendingCount.addAndGet(-commands.size());
+            refused = new RejectedExecutionException(maxPendingCommands + " commands already pending");
+        }
+
+        if (refused != null) {
+            for (int i = 0; i < commands.size(); i++) {
+                CompletableFuture<String> future = new CompletableFuture<>();
+                future.completeExceptionally(refused);
+                futures.add(future);
+            }
+            return futures;
+        }
+
+        ArrayList<Command> batch = new ArrayList<>();
+        for (String text : commands) {
+            Command command = new Command(nextId.getAndIncrement(), text, ackWithState);
+            batch.add(command);
+            futures.add(command.future);
+        }
+
+        loop.execute(() -> {
+            if (closed) {
+                fail(batch, new IOException("client closed"));
+                return;
+            }
+            unsent.add(batch);
+            flushCommands();
+        });
+        return futures;
+    }
+
+    /**
+     * Commands sent but not answered yet.
+     */
+    public int pendingCommands() {
+        return pendingCount.get();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        loop.detach(this);
+        loop.execute(() -> {
+            IOException e = new IOException("client closed");
+            closeChannel();
+            fail(new ArrayList<>(sent.values()), e);
+            sent.clear();
+            while (!unsent.isEmpty()) {
+                fail(unsent.poll(), e);
+            }
+            connected.completeExceptionally(e);
+        });
+    }
+
+    private void open() {
+        if (closed) {
+            return;
+        }
+
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            boolean connectedNow = channel.connect(address);
+            key = loop.register(channel, SelectionKey.OP_CONNECT, handler);
+            if (connectedNow) {
+                onConnected();
+            }
+        } catch (IOException e) {
+            connectionLost(e);
+        }
+    }
+
+    private void onConnected() throws IOException {
+        key.interestOps(SelectionKey.OP_READ);
+        inbound.clear();
+
+        ByteBuffer hello = ByteBuffer.allocate(21).put(Protocol.VERSION).putInt(requestedFeatures);
+        if ((requestedFeatures & Protocol.FEATURE_RESUME) != 0) {
+            hello.putLong(sessionId).putLong(stateSeq);
+        }
+        hello.flip();
+        byte[] payload = new byte[hello.remaining()];
+        hello.get(payload);
+
+        outbound.add(ByteBuffer.wrap(Protocol.MAGIC));
+        writeFrame(Protocol.FRAME_HELLO, payload);
+    }
+
+    private void onHello(ByteBuffer hello) {
+        hello.get();
+        features = hello.getInt();
+
+        boolean resumed = false;
+        if ((features & Protocol.FEATURE_RESUME) != 0) {
+            sessionId = hello.getLong();
+            resumed = hello.get() == 1;
+        }
+        if (!resumed) {
+            state = null;
+            stateSeq = 0;
+            lastMessage = null;
+        }
+        resyncRequested = false;
+
+        binaryDecoder = (features & Protocol.FEATURE_BINARY) != 0 ? new BinaryStateDecoder() : null;
+        if ((features & Protocol.FEATURE_DEFLATE) != 0) {
+            decompressor = new Compression.Decompressor();
+        }
+
+        ready = true;
+        reconnectDelay = MIN_RECONNECT_DELAY_MILLIS;
+        connected.complete(this);
+        flushCommands();
+    }
+
+    private void flushCommands() {
+        if (!ready) {
+            return;
+        }
+
+        try {
+            List<Command> batch;
+            while ((batch = unsent.poll()) != null) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeByte(batch.get(0).ackWithState ? Protocol.BATCH_ACK_WITH_STATE : 0);
+                out.writeInt(batch.size());
+                for (Command command : batch) {
+                    byte[] text = command.text.getBytes(StandardCharsets.UTF_8);
+                    out.writeLong(command.id);
+                    out.writeInt(text.length);
+                    out.write(text);
+                    sent.put(command.id, command);
+                }
+                writeFrame(Protocol.FRAME_BATCH, bytes.toByteArray());
+            }
+        } catch (IOException e) {
+            connectionLost(e);
+        }
+    }
+
+    private void writeFrame(byte type, byte[] payload) throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(Protocol.HEADER_SIZE + payload.length);
+        frame.putInt(payload.length).put(type).put(payload);
+        frame.flip();
+        outbound.add(frame);
+        write();
+    }
+
+    private void write() throws IOException {
+        if (channel == null) {
+            return;
+        }
+
+        ByteBuffer head;
+        while ((head = outbound.peek()) != null) {
+            channel.write(head);
+            if (head.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            outbound.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void read() throws IOException {
+        if (channel.read(inbound) < 0) {
+            throw new IOException("end of stream");
+        }
+
+        inbound.flip();
+        int frameLength = -1;
+        while (inbound.remaining() >= Protocol.HEADER_SIZE) {
+            frameLength = inbound.getInt(inbound.position());
+            if (frameLength < 0 || frameLength > Protocol.MAX_FRAME_SIZE) {
+                throw new IOException("invalid frame length " + frameLength);
+            }
+            if (inbound.remaining() < Protocol.HEADER_SIZE + frameLength) {
+                break;
+            }
+
+            inbound.getInt();
+            byte type = inbound.get();
+            byte[] payload = new byte[frameLength];
+            inbound.get(payload);
+            frameLength = -1;
+
+            handleFrame(type, payload);
+            if (channel == null) {
+                return;
+            }
+        }
+        inbound.compact();
+
+        int needed = frameLength < 0 ? inbound.position() + 1 : Protocol.HEADER_SIZE + frameLength;
+        if (needed > inbound.capacity()) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(inbound.capacity() * 2, needed));
+            inbound.flip();
+            grown.put(inbound);
+            inbound = grown;
+        }
+    }
+
+    private void handleFrame(byte type, byte[] payload) throws IOException {
+        if ((type & Protocol.FLAG_COMPRESSED) != 0) {
+            if (decompressor == null) {
+                throw new IOException("compressed frame without deflate");
+            }
+            payload = decompressor.decompress(payload);
+            type &= Protocol.TYPE_MASK;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        switch (type) {
+            case Protocol.FRAME_HELLO:
+                onHello(buffer);
+                break;
+            case Protocol.FRAME_TEXT:
+                deliver(new String(payload, StandardCharsets.UTF_8));
+                break;
+            case Protocol.FRAME_BINARY:
+                deliver(binaryDecoder.decode(buffer).toString());
+                break;
+            case Protocol.FRAME_STATE:
+                stateSeq = buffer.getLong();
+                state = document(buffer);
+                resyncRequested = false;
+                deliver(state.toString());
+                break;
+            case Protocol.FRAME_DELTA:
+                long seq = buffer.getLong();
+                long baseSeq = buffer.getLong();
+                // Decoded even when it can't be applied, binary string tables depend on it
+                JsonElement patch = document(buffer);
+                if (state == null || baseSeq != stateSeq) {
+                    if (!resyncRequested) {
+                        resyncRequested = true;
+                        writeFrame(Protocol.FRAME_RESYNC, new byte[0]);
+                    }
+                    break;
+                }
+                state = StateDiff.apply(state, patch.getAsJsonObject());
+                stateSeq = seq;
+                deliver(state.toString());
+                break;
+            case Protocol.FRAME_ACK:
+                onAck(buffer);
+                break;
+            case Protocol.FRAME_TIMING:
+                StepTiming timing = StepTiming.read(buffer);
+                for (Consumer<StepTiming> listener : timingListeners) {
+                    try {
+                        listener.accept(timing);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+                break;
+            case Protocol.FRAME_SAVESTATE:
+                SaveStateTransfer.Upload exported = SaveStateTransfer.parse(payload);
+                for (BiConsumer<String, byte[]> listener : saveStateListeners) {
+                    try {
+                        listener.accept(exported.name, exported.snapshot);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+                break;
+            case Protocol.FRAME_ERROR:
+                System.err.println("server closed the connection: " + new String(payload, StandardCharsets.UTF_8));
+                break;
+            default:
+                System.err.println("ignoring frame of type " + type);
+        }
+    }
+
+    private void onAck(ByteBuffer ack) throws IOException {
+        long id = ack.getLong();
+        byte status = ack.get();
+        byte[] message = new byte[ack.getInt()];
+        ack.get(message);
+        String resultingState = lastMessage;
+        if (ack.hasRemaining()) {
+            long seq = (features & Protocol.FEATURE_DELTA) != 0 ? ack.getLong() : 0;
+            JsonElement document = null;
+            if (binaryDecoder != null) {
+                document = binaryDecoder.decode(ack);
+                // A state too malformed for the server to parse comes as its text
+                resultingState = document.isJsonPrimitive() ? document.getAsString() : document.toString();
+            } else {
+                resultingState = new String(ack.array(), ack.position(), ack.remaining(), StandardCharsets.UTF_8);
+            }
+            if ((features & Protocol.FEATURE_DELTA) != 0) {
+                // The server takes it as the new delta base, as it would a keyframe
+                state = document != null ? document : new JsonParser().parse(resultingState);
+                stateSeq = seq;
+                resyncRequested = false;
+            }
+            deliver(resultingState);
+        }
+
+        Command command = sent.remove(id);
+        if (command == null) {
+            return;
+        }
+
+        if (status == Protocol.ACK_OK) {
+            pendingCount.decrementAndGet();
+            command.future.complete(resultingState);
+        } else {
+            fail(Collections.singletonList(command), new CommandFailedException(command.text, status, new String(message, StandardCharsets.UTF_8)));
+        }
+    }
+
+    private JsonElement document(ByteBuffer body) throws IOException {
+        if (binaryDecoder != null) {
+            return binaryDecoder.decode(body);
+        }
+        return new JsonParser().parse(new String(body.array(), body.position(), body
+                .remaining(), StandardCharsets.UTF_8));
+    }
+
+    private void deliver(String message) {
+        lastMessage = message;
+        for (Consumer<String> listener : listeners) {
+            try {
+                listener.accept(message);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void connectionLost(IOException e) {
+        closeChannel();
+
+        IOException lost = new IOException("connection lost before the command was answered", e);
+        fail(new ArrayList<>(sent.values()), lost);
+        sent.clear();
+
+        if (closed) {
+            return;
+        }
+
+        System.err.println("lost connection to " + address + ", retrying in " + reconnectDelay + "ms: " + e
+                .getMessage());
+        loop.schedule(this::open, reconnectDelay);
+        reconnectDelay = Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY_MILLIS);
+    }
+
+    private void closeChannel() {
+        ready = false;
+        outbound.clear();
+        if (decompressor != null) {
+            decompressor.end();
+            decompressor = null;
+        }
+
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            channel = null;
+            key = null;
+        }
+    }
+
+    private void fail(List<Command> commands, Exception e) {
+        for (Command command : commands) {
+            // Freed before completing so that a caller sending from the callback has room
+            pendingCount.decrementAndGet();
+            command.future.completeExceptionally(e);
+        }
+    }
+
+    private static class Command {
+        final long id;
+        final String text;
+        final boolean ackWithState;
+        final CompletableFuture<String> future = new CompletableFuture<>();
+
+        Command(long id, String text, boolean ackWithState) {
+            this.id = id;
+            this.text = text;
+            this.ackWithState = ackWithState;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package orchestrator;
+
+import transport.SharedMemoryServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One ModTheSpire game process with its own ports, shared memory rings and profile.
+ *
+ * The game runs in a directory of its own that links to everything in the game directory except
+ * what the game writes: preferences, saves, runs and logs. ModTheSpire's config directory, where
+ * CommunicationMod reads runAtGameStart from, is moved there too through XDG_CONFIG_HOME (which
+ * is where ModTheSpire looks on Linux). The mod's settings are passed as communicationmod.*
+ * system properties in JAVA_TOOL_OPTIONS, so they reach the game even if ModTheSpire relaunches
+ * the JVM.
+ */
+class GameInstance {
+    private static final List<String> PER_INSTANCE = Arrays
+            .asList("preferences", "saves", "runs", "sendToDevs", "logs", "config", "game.log", "jobs");
+    private static final int HTTP_TIMEOUT_MILLIS = 2_000;
+    private static final long STOP_TIMEOUT_SECONDS = 10;
+
+    final int index;
+    final Path directory;
+    final int port;
+    final int httpPort;
+    final Path sharedMemoryDir;
+
+    private final Orchestrator.Settings settings;
+    private Process process = null;
+
+    GameInstance(int index, Path directory, int port, int httpPort, Orchestrator.Settings settings) {
+        this.index = index;
+        this.directory = directory;
+        this.port = port;
+        this.httpPort = httpPort;
+        this.sharedMemoryDir = SharedMemoryServer.defaultDirectory()
+                                                 .resolveSibling("communicationmod-" + index);
+        this.settings = settings;
+    }
+
+    synchronized void start() throws IOException {
+        prepareDirectory();
+
+        ProcessBuilder builder = new ProcessBuilder(settings.gameCommand);
+        builder.directory(directory.toFile());
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(ProcessBuilder.Redirect.appendTo(directory.resolve("game.log").toFile()));
+
+        Map<String, String> environment = builder.environment();
+        String toolOptions = environment.getOrDefault("JAVA_TOOL_OPTIONS", "");
+        environment.put("JAVA_TOOL_OPTIONS", (toolOptions + " " + systemProperties()).trim());
+        environment.put("XDG_CONFIG_HOME", directory.resolve("config").toString());
+
+        process = builder.start();
+    }
+
+    synchronized boolean isRunning() {
+        return process != null && process.isAlive();
+    }
+
+    /**
+     * Whether the mod answers on its HTTP port, with the latest state or a 503 before the first.
+     */
+    boolean isResponding() {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + httpPort + "/state")
+                    .openConnection();
+            connection.setConnectTimeout(HTTP_TIMEOUT_MILLIS);
+            connection.setReadTimeout(HTTP_TIMEOUT_MILLIS);
+            int status = connection.getResponseCode();
+            connection.disconnect();
+            return status == 200 || status == 503;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return false if the game died or didn't respond in time
+     */
+    boolean awaitReady(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (System.currentTimeMillis() < deadline) {
+            if (!isRunning()) {
+                return false;
+            }
+            if (isResponding()) {
+                return true;
+            }
+            Thread.sleep(1000);
+        }
+        return false;
+    }
+
+    synchronized void stop() throws InterruptedException {
+        if (process == null) {
+            return;
+        }
+
+        process.destroy();
+        if (!process.waitFor(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            process.destroyForcibly().waitFor();
+        }
+        process = null;
+    }
+
+    private String systemProperties() {
+        return "-Dcommunicationmod.method=" + settings.method
+                + " -Dcommunicationmod.turbo=" + settings.turbo
+                + " -Dcommunicationmod.port=" + port
+                + " -Dcommunicationmod.httpPort=" + httpPort
+                + " -Dcommunicationmod.sharedMemoryDir=" + sharedMemoryDir;
+    }
+
+    private void prepareDirectory() throws IOException {
+        Files.createDirectories(directory.resolve("jobs"));
+
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(settings.gameDir)) {
+            for (Path entry : entries) {
+                Path link = directory.resolve(entry.getFileName().toString());
+                if (!PER_INSTANCE.contains(entry.getFileName().toString()) && !Files.exists(link, LinkOption.NOFOLLOW_LINKS)) {
+                    Files.createSymbolicLink(link, entry.toAbsolutePath());
+                }
+            }
+        }
+
+        // Nobody is there to click "start external process"
+        Path communicationModConfig = directory
+                .resolve("config/ModTheSpire/CommunicationMod/config.properties");
+        if (!Files.exists(communicationModConfig)) {
+            Files.createDirectories(communicationModConfig.getParent());
+            try (OutputStream out = Files.newOutputStream(communicationModConfig)) {
+                out.write("runAtGameStart=true\n".getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "game " + index + " (port " + port + ")";
+    }
+}
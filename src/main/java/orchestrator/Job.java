@@ -0,0 +1,38 @@
+package orchestrator;
+
+/**
+ * One line of the jobs file: play a seed with one of the configured agents.
+ */
+class Job {
+    final int id;
+    final String seed;
+    final String agent;
+    int attempts = 0;
+
+    Job(int id, String seed, String agent) {
+        this.id = id;
+        this.seed = seed;
+        this.agent = agent;
+    }
+
+    /**
+     * @return null for blank lines and # comments
+     */
+    static Job parse(int id, String line) {
+        String trimmed = line.trim();
+        if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+            return null;
+        }
+
+        String[] tokens = trimmed.split("\\s+");
+        if (tokens.length != 2) {
+            throw new IllegalArgumentException("expected \"seed agent\", got: " + line);
+        }
+        return new Job(id, tokens[0], tokens[1]);
+    }
+
+    @Override
+    public String toString() {
+        return "job " + id + " (seed " + seed + ", agent " + agent + ")";
+    }
+}
@@ -0,0 +1,355 @@
+package orchestrator;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs several games on one machine and hands them jobs, "play seed X with agent Y", from a jobs
+ * file until every job is done.
+ *
+ * usage: Orchestrator orchestrator.properties jobs.txt
+ *
+ * The jobs file has one "seed agent" pair per line. The properties file names the agents and
+ * says how to start the game:
+ * <pre>
+ *   game.dir=/path/to/SlayTheSpire              (required)
+ *   game.command=java -jar ModTheSpire.jar --skip-launcher --skip-intro --mods ...
+ *   instances=8                                 (half the cores by default)
+ *   method=SOCKET                               (or SHARED_MEMORY)
+ *   turbo=true
+ *   ports.base=8100                             (two ports per game, the socket and HTTP ports)
+ *   work.dir=instances
+ *   startup.timeoutSeconds=300
+ *   job.timeoutSeconds=3600
+ *   job.maxAttempts=3
+ *   agent.random=python3 random_agent.py --port {port} --seed {seed}
+ * </pre>
+ * Agent commands are split on spaces and may use {port}, {httpPort}, {sharedMemoryDir}, {seed},
+ * {instance} and {job}. An agent plays its seed through the game it is given and exits, with 0
+ * if the run went fine.
+ *
+ * Every game is health-checked through its HTTP port while an agent plays. A game that dies,
+ * stops answering or outlives the job timeout is restarted and the job goes back in the queue,
+ * up to job.maxAttempts times. Each job's outcome is appended to results.tsv in the work
+ * directory, the agent's output goes to jobs/ in its game's directory.
+ */
+public class Orchestrator {
+    private static final String DEFAULT_GAME_COMMAND = "java -jar ModTheSpire.jar --skip-launcher --skip-intro --mods basemod,CommunicationMod,SaveStateMod,LudicrousSpeed,CommunicationModExtension";
+    private static final long HEALTH_CHECK_INTERVAL_SECONDS = 10;
+    // Checks in a row a game may miss before it counts as hung
+    private static final int MAX_MISSED_HEALTH_CHECKS = 3;
+    // Starts in a row that may fail before a game is given up on
+    private static final int MAX_FAILED_STARTS = 3;
+
+    enum Outcome {
+        FINISHED,
+        AGENT_FAILED,
+        GAME_CRASHED,
+        GAME_HUNG,
+        TIMED_OUT
+    }
+
+    static class Settings {
+        Path gameDir;
+        List<String> gameCommand;
+        int instances;
+        String method;
+        boolean turbo;
+        int basePort;
+        Path workDir;
+        long startupTimeoutMillis;
+        long jobTimeoutMillis;
+        int maxAttempts;
+        Map<String, List<String>> agents = new HashMap<>();
+
+        static Settings load(Path file) throws IOException {
+            Properties properties = new Properties();
+            try (InputStreamReader reader = new InputStreamReader(new FileInputStream(file.toFile()), StandardCharsets.UTF_8)) {
+                properties.load(reader);
+            }
+
+            Settings settings = new Settings();
+            String gameDir = properties.getProperty("game.dir");
+            if (gameDir == null) {
+                throw new IllegalArgumentException("game.dir is required");
+            }
+            settings.gameDir = Paths.get(gameDir).toAbsolutePath();
+            settings.gameCommand = split(properties.getProperty("game.command", DEFAULT_GAME_COMMAND));
+            int cores = Runtime.getRuntime().availableProcessors();
+            settings.instances = Integer
+                    .parseInt(properties.getProperty("instances", Integer.toString(Math.max(1, cores / 2))));
+            settings.method = properties.getProperty("method", "SOCKET");
+            settings.turbo = Boolean.parseBoolean(properties.getProperty("turbo", "true"));
+            settings.basePort = Integer.parseInt(properties.getProperty("ports.base", "8100"));
+            settings.workDir = Paths.get(properties.getProperty("work.dir", "instances")).toAbsolutePath();
+            settings.startupTimeoutMillis = TimeUnit.SECONDS
+                    .toMillis(Long.parseLong(properties.getProperty("startup.timeoutSeconds", "300")));
+            settings.jobTimeoutMillis = TimeUnit.SECONDS
+                    .toMillis(Long.parseLong(properties.getProperty("job.timeoutSeconds", "3600")));
+            settings.maxAttempts = Integer.parseInt(properties.getProperty("job.maxAttempts", "3"));
+
+            for (String key : properties.stringPropertyNames()) {
+                if (key.startsWith("agent.")) {
+                    settings.agents.put(key.substring("agent.".length()), split(properties.getProperty(key)));
+                }
+            }
+            if (settings.agents.isEmpty()) {
+                throw new IllegalArgumentException("no agent.<name> commands configured");
+            }
+            return settings;
+        }
+
+        private static List<String> split(String command) {
+            return Arrays.asList(command.trim().split("\\s+"));
+        }
+    }
+
+    private final Settings settings;
+    private final BlockingQueue<Job> jobs = new LinkedBlockingQueue<>();
+    // Jobs queued or being played; workers stop once it reaches 0
+    private final AtomicInteger unfinished = new AtomicInteger();
+    private final Map<Outcome, AtomicInteger> outcomes = new EnumMap<>(Outcome.class);
+    private final List<GameInstance> instances = new ArrayList<>();
+    private final PrintWriter results;
+
+    Orchestrator(Settings settings, List<Job> jobList) throws IOException {
+        this.settings = settings;
+        for (Outcome outcome : Outcome.values()) {
+            outcomes.put(outcome, new AtomicInteger());
+        }
+        for (Job job : jobList) {
+            if (!settings.agents.containsKey(job.agent)) {
+                throw new IllegalArgumentException("unknown agent in " + job);
+            }
+            jobs.add(job);
+        }
+        unfinished.set(jobs.size());
+
+        Files.createDirectories(settings.workDir);
+        results = new PrintWriter(Files.newBufferedWriter(settings.workDir
+                .resolve("results.tsv"), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length != 2) {
+            System.err.println("usage: Orchestrator orchestrator.properties jobs.txt");
+            return;
+        }
+
+        Settings settings = Settings.load(Paths.get(args[0]));
+        List<Job> jobList = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(args[1]), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Job job = Job.parse(jobList.size() + 1, line);
+                if (job != null) {
+                    jobList.add(job);
+                }
+            }
+        }
+
+        new Orchestrator(settings, jobList).run();
+    }
+
+    void run() throws InterruptedException {
+        int port = settings.basePort;
+        for (int i = 0; i < settings.instances; i++) {
+            while (!isFree(port) || !isFree(port + 1)) {
+                port += 2;
+            }
+            instances.add(new GameInstance(i, settings.workDir.resolve("game-" + i), port, port + 1, settings));
+            port += 2;
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stopAll));
+
+        System.err.println("playing " + unfinished.get() + " jobs on " + instances.size() + " games");
+        long start = System.currentTimeMillis();
+        List<Thread> workers = new ArrayList<>();
+        for (GameInstance instance : instances) {
+            Thread worker = new Thread(() -> work(instance), "orchestrator " + instance.index);
+            worker.start();
+            workers.add(worker);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        System.err.format("done in %ds: %s\n", (System.currentTimeMillis() - start) / 1000, outcomes);
+        if (unfinished.get() > 0) {
+            System.err.println(unfinished.get() + " jobs left unplayed, every game failed to start");
+        }
+        results.close();
+    }
+
+    private void work(GameInstance instance) {
+        int failedStarts = 0;
+        try {
+            while (unfinished.get() > 0) {
+                if (!instance.isRunning() || !instance.isResponding()) {
+                    if (!restart(instance)) {
+                        if (++failedStarts >= MAX_FAILED_STARTS) {
+                            System.err.println(instance + " failed to start " + failedStarts + " times, giving up on it");
+                            return;
+                        }
+                        continue;
+                    }
+                    failedStarts = 0;
+                }
+
+                Job job = jobs.poll(1, TimeUnit.SECONDS);
+                if (job == null) {
+                    continue;
+                }
+
+                job.attempts++;
+                long jobStart = System.currentTimeMillis();
+                Outcome outcome;
+                int exitCode = -1;
+                Process agent = null;
+                try {
+                    agent = startAgent(instance, job);
+                    outcome = watch(instance, agent);
+                    if (outcome == null) {
+                        exitCode = agent.exitValue();
+                        outcome = exitCode == 0 ? Outcome.FINISHED : Outcome.AGENT_FAILED;
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    outcome = Outcome.AGENT_FAILED;
+                } finally {
+                    if (agent != null && agent.isAlive()) {
+                        agent.destroyForcibly();
+                    }
+                }
+
+                record(instance, job, outcome, exitCode, System.currentTimeMillis() - jobStart);
+                boolean gameAtFault = outcome != Outcome.FINISHED && outcome != Outcome.AGENT_FAILED;
+                if (gameAtFault) {
+                    instance.stop();
+                }
+                if (gameAtFault && job.attempts < settings.maxAttempts) {
+                    System.err.println(job + " " + outcome + " on " + instance + ", requeued");
+                    jobs.add(job);
+                } else {
+                    outcomes.get(outcome).incrementAndGet();
+                    unfinished.decrementAndGet();
+                }
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                instance.stop();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private boolean restart(GameInstance instance) throws InterruptedException {
+        instance.stop();
+        try {
+            instance.start();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        if (!instance.awaitReady(settings.startupTimeoutMillis)) {
+            System.err.println(instance + " didn't come up, see " + instance.directory.resolve("game.log"));
+            instance.stop();
+            return false;
+        }
+        System.err.println(instance + " ready");
+        return true;
+    }
+
+    private Process startAgent(GameInstance instance, Job job) throws IOException {
+        List<String> command = new ArrayList<>();
+        for (String token : settings.agents.get(job.agent)) {
+            command.add(token.replace("{port}", Integer.toString(instance.port))
+                             .replace("{httpPort}", Integer.toString(instance.httpPort))
+                             .replace("{sharedMemoryDir}", instance.sharedMemoryDir.toString())
+                             .replace("{seed}", job.seed)
+                             .replace("{instance}", Integer.toString(instance.index))
+                             .replace("{job}", Integer.toString(job.id)));
+        }
+
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(instance.directory.resolve("jobs")
+                                                 .resolve("job-" + job.id + "-" + job.attempts + ".log")
+                                                 .toFile());
+        return builder.start();
+    }
+
+    /**
+     * Waits for the agent to exit while checking on the game.
+     *
+     * @return null if the agent exited on its own
+     */
+    private Outcome watch(GameInstance instance, Process agent) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + settings.jobTimeoutMillis;
+        int missedChecks = 0;
+        while (!agent.waitFor(HEALTH_CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS)) {
+            if (!instance.isRunning()) {
+                return Outcome.GAME_CRASHED;
+            }
+            missedChecks = instance.isResponding() ? 0 : missedChecks + 1;
+            if (missedChecks >= MAX_MISSED_HEALTH_CHECKS) {
+                return Outcome.GAME_HUNG;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                return Outcome.TIMED_OUT;
+            }
+        }
+        return instance.isRunning() ? null : Outcome.GAME_CRASHED;
+    }
+
+    private synchronized void record(GameInstance instance, Job job, Outcome outcome, int exitCode, long millis) {
+        results.format("%d\t%s\t%s\t%d\t%d\t%s\t%d\t%.1f\n", job.id, job.seed, job.agent, instance.index, job.attempts, outcome, exitCode, millis / 1000.0);
+        results.flush();
+    }
+
+    private void stopAll() {
+        for (GameInstance instance : instances) {
+            try {
+                instance.stop();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static boolean isFree(int port) {
+        try (ServerSocket socket = new ServerSocket()) {
+            socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package transport;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import static transport.BinaryStateEncoder.*;
+
+/**
+ * Client side counterpart of {@link BinaryStateEncoder}. Like the encoder it is tied to one
+ * connection and has to be handed every binary document in the order it was received.
+ */
+public class BinaryStateDecoder {
+    private final ArrayList<String> strings = new ArrayList<>();
+    private final ArrayList<String[]> shapes = new ArrayList<>();
+
+    public JsonElement decode(ByteBuffer in) throws IOException {
+        try {
+            return read(in);
+        } catch (RuntimeException e) {
+            throw new IOException("malformed binary state", e);
+        }
+    }
+
+    private JsonElement read(ByteBuffer in) throws IOException {
+        byte tag = in.get();
+        switch (tag) {
+            case NULL:
+                return JsonNull.INSTANCE;
+            case FALSE:
+                return new JsonPrimitive(false);
+            case TRUE:
+                return new JsonPrimitive(true);
+            case INT:
+                long zigzag = readVarint(in);
+                return new JsonPrimitive((zigzag >>> 1) ^ -(zigzag & 1));
+            case DOUBLE:
+                return new JsonPrimitive(Double.longBitsToDouble(in.getLong()));
+            case STRING:
+            case NEW_STRING:
+            case RAW_STRING:
+                return new JsonPrimitive(readString(tag, in));
+            case ARRAY:
+                int count = (int) readVarint(in);
+                JsonArray array = new JsonArray();
+                for (int i = 0; i < count; i++) {
+                    array.add(read(in));
+                }
+                return array;
+            case OBJECT:
+                return readObject(shapes.get((int) readVarint(in)), in);
+            case NEW_OBJECT:
+                String[] keys = new String[(int) readVarint(in)];
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = readString(in.get(), in);
+                }
+                if (shapes.size() < MAX_TABLE_SIZE) {
+                    shapes.add(keys);
+                }
+                return readObject(keys, in);
+            default:
+                throw new IOException("unknown tag " + tag);
+        }
+    }
+
+    private JsonObject readObject(String[] keys, ByteBuffer in) throws IOException {
+        JsonObject object = new JsonObject();
+        for (String key : keys) {
+            object.add(key, read(in));
+        }
+        return object;
+    }
+
+    private String readString(byte tag, ByteBuffer in) throws IOException {
+        if (tag == STRING) {
+            return strings.get((int) readVarint(in));
+        }
+        if (tag != NEW_STRING && tag != RAW_STRING) {
+            throw new IOException("expected a string, got tag " + tag);
+        }
+
+        byte[] bytes = new byte[(int) readVarint(in)];
+        in.get(bytes);
+        String value = new String(bytes, StandardCharsets.UTF_8);
+        if (tag == NEW_STRING) {
+            strings.add(value);
+        }
+        return value;
+    }
+
+    private static long readVarint(ByteBuffer in) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,180 @@
+package transport;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact binary form of the JSON documents sent to clients with
+ * {@link Protocol#FEATURE_BINARY}.
+ *
+ * Both ends of a connection build the same tables as frames go by: a string is spelled out the
+ * first time it is sent and referenced by index afterwards, so card, relic, potion and monster
+ * ids cost a byte or two after their first appearance. Objects are described by their shape,
+ * the ordered list of their keys, which is likewise sent once; every later card or monster with
+ * the same fields is just a shape reference followed by its values. Integers are zigzag varints.
+ *
+ * <pre>
+ *   NULL | FALSE | TRUE
+ *   INT         varint(zigzag(value))
+ *   DOUBLE      8 byte IEEE 754
+ *   STRING      varint(index)
+ *   NEW_STRING  varint(byte length) utf-8, then appended to the string table
+ *   RAW_STRING  varint(byte length) utf-8, not interned
+ *   ARRAY       varint(count) value*
+ *   OBJECT      varint(shape index) value*
+ *   NEW_OBJECT  varint(key count) (key string)* value*, the keys are appended as a new shape
+ * </pre>
+ * Keys inside NEW_OBJECT are written as tagged string values. Both tables stop growing at
+ * {@link #MAX_TABLE_SIZE} entries; strings past that point are sent as RAW_STRING and new shapes
+ * are simply not remembered.
+ *
+ * The tables are learned from the documents rather than fixed by a schema. CommunicationMod's
+ * state has none to go by: its fields depend on the screen, the game version and the mods
+ * installed, and card, relic, potion and monster ids are open ended. A fixed schema would have to
+ * be kept in step with all of those on both ends and fall back to text for whatever it didn't
+ * know, while learned tables get the same savings after the first state, every key and id down
+ * to an index, and take in whatever a mod adds.
+ *
+ * The price is that both ends keep state: an encoder is tied to one connection and must see every
+ * document, including the states carried in ACKs, in the order the decoder on the other end will.
+ */
+public class BinaryStateEncoder {
+    static final byte NULL = 0;
+    static final byte FALSE = 1;
+    static final byte TRUE = 2;
+    static final byte INT = 3;
+    static final byte DOUBLE = 4;
+    static final byte STRING = 5;
+    static final byte NEW_STRING = 6;
+    static final byte RAW_STRING = 7;
+    static final byte ARRAY = 8;
+    static final byte OBJECT = 9;
+    static final byte NEW_OBJECT = 10;
+
+    // Long free text such as card descriptions is rarely repeated verbatim, keep it out of the table
+    static final int MAX_INTERNED_LENGTH = 64;
+    static final int MAX_TABLE_SIZE = 1 << 16;
+
+    private final HashMap<String, Integer> strings = new HashMap<>();
+    private final HashMap<ArrayList<String>, Integer> shapes = new HashMap<>();
+
+    private final Output out = new Output();
+
+    public byte[] encode(JsonElement element) {
+        out.reset();
+        write(element);
+        return out.toByteArray();
+    }
+
+    private void write(JsonElement element) {
+        if (element == null || element.isJsonNull()) {
+            out.write(NULL);
+        } else if (element.isJsonPrimitive()) {
+            writePrimitive(element.getAsJsonPrimitive());
+        } else if (element.isJsonArray()) {
+            JsonArray array = element.getAsJsonArray();
+            out.write(ARRAY);
+            out.writeVarint(array.size());
+            for (JsonElement child : array) {
+                write(child);
+            }
+        } else {
+            writeObject(element.getAsJsonObject());
+        }
+    }
+
+    private void writeObject(JsonObject object) {
+        ArrayList<String> keys = new ArrayList<>();
+        for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+            keys.add(entry.getKey());
+        }
+
+        Integer shape = shapes.get(keys);
+        if (shape != null) {
+            out.write(OBJECT);
+            out.writeVarint(shape);
+        } else {
+            out.write(NEW_OBJECT);
+            out.writeVarint(keys.size());
+            for (String key : keys) {
+                writeString(key);
+            }
+            if (shapes.size() < MAX_TABLE_SIZE) {
+                shapes.put(keys, shapes.size());
+            }
+        }
+
+        for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+            write(entry.getValue());
+        }
+    }
+
+    private void writePrimitive(JsonPrimitive primitive) {
+        if (primitive.isBoolean()) {
+            out.write(primitive.getAsBoolean() ? TRUE : FALSE);
+        } else if (primitive.isNumber()) {
+            String number = primitive.getAsString();
+            if (number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0) {
+                try {
+                    long value = Long.parseLong(number);
+                    out.write(INT);
+                    out.writeVarint((value << 1) ^ (value >> 63));
+                    return;
+                } catch (NumberFormatException e) {
+                    // too large for a long, fall through to a double
+                }
+            }
+            out.write(DOUBLE);
+            out.writeLong(Double.doubleToLongBits(primitive.getAsDouble()));
+        } else {
+            writeString(primitive.getAsString());
+        }
+    }
+
+    private void writeString(String value) {
+        Integer index = strings.get(value);
+        if (index != null) {
+            out.write(STRING);
+            out.writeVarint(index);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (value.length() <= MAX_INTERNED_LENGTH && strings.size() < MAX_TABLE_SIZE) {
+            strings.put(value, strings.size());
+            out.write(NEW_STRING);
+        } else {
+            out.write(RAW_STRING);
+        }
+        out.writeVarint(bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static class Output extends ByteArrayOutputStream {
+        Output() {
+            super(16 * 1024);
+        }
+
+        void writeVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void writeLong(long value) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                write((int) (value >>> shift));
+            }
+        }
+    }
+}
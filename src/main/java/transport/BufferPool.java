@@ -0,0 +1,66 @@
+package transport;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed size direct buffers that are reused across outbound frames so that large states don't
+ * churn through fresh allocations or get copied into the JDK's temporary direct buffers on write.
+ *
+ * Direct memory is only given back when the process exits, so at most maxDirect buffers are ever
+ * allocated direct. Past that, while slow clients hold on to their frames, the pool hands out
+ * heap buffers, which cost a copy on write but are garbage collected.
+ */
+public class BufferPool {
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    private static final int DEFAULT_MAX_POOLED = 256;
+    private static final int DEFAULT_MAX_DIRECT = 1024;
+
+    private final int chunkSize;
+    private final int maxPooled;
+    private final int maxDirect;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger freeCount = new AtomicInteger();
+    private final AtomicInteger directCount = new AtomicInteger();
+
+    public BufferPool() {
+        this(DEFAULT_CHUNK_SIZE, DEFAULT_MAX_POOLED, DEFAULT_MAX_DIRECT);
+    }
+
+    public BufferPool(int chunkSize, int maxPooled, int maxDirect) {
+        this.chunkSize = chunkSize;
+        this.maxPooled = Math.min(maxPooled, maxDirect);
+        this.maxDirect = maxDirect;
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            if (directCount.incrementAndGet() > maxDirect) {
+                directCount.decrementAndGet();
+                return ByteBuffer.allocate(chunkSize);
+            }
+            return ByteBuffer.allocateDirect(chunkSize);
+        }
+
+        freeCount.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (!buffer.isDirect() || buffer.capacity() != chunkSize) {
+            return;
+        }
+        if (freeCount.incrementAndGet() > maxPooled) {
+            // Dropped for the garbage collector, which frees its memory eventually
+            freeCount.decrementAndGet();
+            directCount.decrementAndGet();
+            return;
+        }
+
+        free.add(buffer);
+    }
+}
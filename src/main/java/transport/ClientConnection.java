@@ -0,0 +1,172 @@
+package transport;
+
+import com.google.gson.JsonElement;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single client attached to the {@link SocketServer}. All channel I/O happens on the selector
+ * thread; other threads only hand over outbound frames through {@link #enqueue(Frame)}.
+ *
+ * A client that lets more than {@link #MAX_QUEUED_BYTES} pile up unread is {@link #isOverflowed()
+ * overflowed}: nothing more is queued for it, and the selector thread disconnects it. One that
+ * resumes its session afterwards is sent what it missed, or a keyframe.
+ */
+class ClientConnection {
+    static final long MAX_QUEUED_BYTES = 64L * 1024 * 1024;
+    private static final int INITIAL_READ_BUFFER_SIZE = 4 * 1024;
+
+    enum Mode {
+        // Nothing received yet, we can't tell which protocol the client speaks
+        UNDECIDED,
+        LEGACY,
+        AWAITING_HELLO,
+        FRAMED
+    }
+
+    final SocketChannel channel;
+    final long connectedAt = System.currentTimeMillis();
+    SelectionKey key;
+
+    volatile Mode mode = Mode.UNDECIDED;
+    int version;
+    int features;
+    Session session = null;
+
+    // Per client encoding state, guarded by the connection's monitor
+    long sentSeq = 0;
+    long deltaSeq = -1;
+    JsonElement deltaBase = null;
+    int deltasSinceKeyframe = 0;
+    BinaryStateEncoder binaryEncoder = null;
+    Compression.Compressor compressor = null;
+    Projection projection = null;
+
+    ByteBuffer inbound = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+    int bytesNeeded = 0;
+
+    private final ConcurrentLinkedQueue<PendingFrame> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private volatile boolean closed = false;
+    private volatile boolean overflowed = false;
+
+    ClientConnection(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Takes over one reference to the frame.
+     */
+    void enqueue(Frame frame) {
+        if (closed || overflowed) {
+            frame.release();
+            return;
+        }
+
+        PendingFrame pending = new PendingFrame(frame);
+        if (queuedBytes.addAndGet(pending.size) > MAX_QUEUED_BYTES) {
+            queuedBytes.addAndGet(-pending.size);
+            overflowed = true;
+            frame.release();
+            return;
+        }
+
+        outbound.add(pending);
+        if (closed) {
+            releaseOutbound();
+        }
+    }
+
+    boolean hasFeature(int feature) {
+        return (features & feature) != 0;
+    }
+
+    boolean hasPendingWrites() {
+        return !outbound.isEmpty();
+    }
+
+    boolean isOverflowed() {
+        return overflowed;
+    }
+
+    /**
+     * Writes as much of the outbound queue as the socket accepts.
+     *
+     * @return true if everything was flushed, false if the socket buffer filled up
+     */
+    boolean flush() throws IOException {
+        PendingFrame head;
+        while ((head = outbound.peek()) != null) {
+            channel.write(head.views);
+            if (head.views[head.views.length - 1].hasRemaining()) {
+                return false;
+            }
+            outbound.poll();
+            queuedBytes.addAndGet(-head.size);
+            head.frame.release();
+        }
+        return true;
+    }
+
+    void close() throws IOException {
+        closed = true;
+        key.cancel();
+        channel.close();
+        releaseOutbound();
+
+        synchronized (this) {
+            if (compressor != null) {
+                compressor.end();
+                compressor = null;
+            }
+        }
+    }
+
+    /**
+     * Makes sure at least {@code bytes} more bytes fit in the inbound buffer, which is expected
+     * to be in write mode.
+     */
+    void ensureInboundCapacity(int bytes) {
+        if (inbound.remaining() < bytes) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(inbound.capacity() * 2, inbound
+                    .position() + bytes));
+            inbound.flip();
+            grown.put(inbound);
+            inbound = grown;
+        }
+    }
+
+    private void releaseOutbound() {
+        PendingFrame pending;
+        while ((pending = outbound.poll()) != null) {
+            queuedBytes.addAndGet(-pending.size);
+            pending.frame.release();
+        }
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return String.valueOf(channel.getRemoteAddress());
+        } catch (IOException e) {
+            return "closed client";
+        }
+    }
+
+    private static class PendingFrame {
+        final Frame frame;
+        final ByteBuffer[] views;
+        final long size;
+
+        PendingFrame(Frame frame) {
+            this.frame = frame;
+            this.views = frame.views();
+            this.size = frame.size();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package transport;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Feeds pipelined commands to the game one at a time and matches each with its outcome.
+ *
+ * The game only accepts a command once it is waiting for one, so a whole turn of plays can't
+ * simply be dropped into the read queue. Instead the sequencer holds the batch on the server and
+ * releases the next command as soon as the game answers the previous one: the next message it
+ * sends is either the resulting state, meaning success, or an error. This keeps the pacing
+ * without a network round trip per command.
+ *
+ * Plain commands, from TEXT frames and legacy clients, go through here as well, since their
+ * answers are indistinguishable from those of pipelined commands. Each one the game hasn't
+ * answered yet holds back the next pipelined command, and while a batch is running plain
+ * commands are turned away, so every answer is matched with the command that caused it.
+ */
+class CommandSequencer {
+    static final long COMMAND_TIMEOUT_MILLIS = 60_000;
+    // How soon the selector retries a command the full read queue turned away
+    static final long QUEUE_FULL_RETRY_MILLIS = 5;
+
+    private final BlockingQueue<String> readQueue;
+    private final ArrayDeque<Command> pending = new ArrayDeque<>();
+    private Command inFlight = null;
+    private long inFlightSince;
+    private boolean queueFull = false;
+    // Plain commands in the read queue or running, answered before anything released after them
+    private int plainUnanswered = 0;
+    private long plainSince;
+
+    CommandSequencer(BlockingQueue<String> readQueue) {
+        this.readQueue = readQueue;
+    }
+
+    /**
+     * @return null if the command was queued, otherwise why not
+     */
+    synchronized String submitPlain(String command, long receivedAt) {
+        if (inFlight != null || !pending.isEmpty()) {
+            return "a pipelined batch is running, send commands in a BATCH or wait for its acks";
+        }
+
+        StepTimer.commandReceived(command, receivedAt);
+        if (!readQueue.offer(command)) {
+            StepTimer.commandRejected(command);
+            return "the game's command queue is full";
+        }
+        plainUnanswered++;
+        plainSince = System.currentTimeMillis();
+        return null;
+    }
+
+    synchronized List<Completion> submit(List<Command> batch) {
+        pending.addAll(batch);
+
+        releaseNext();
+        return new ArrayList<>();
+    }
+
+    /**
+     * Called for every message the game sends.
+     *
+     * @param error the error message if the game rejected a command, otherwise null
+     */
+    synchronized List<Completion> onMessage(String error) {
+        ArrayList<Completion> completions = new ArrayList<>();
+        if (plainUnanswered > 0) {
+            plainUnanswered--;
+            releaseNext();
+            return completions;
+        }
+        if (inFlight == null) {
+            return completions;
+        }
+
+        complete(error == null ? Protocol.ACK_OK : Protocol.ACK_ERROR, error, completions);
+        releaseNext();
+        return completions;
+    }
+
+    synchronized List<Completion> expire(long now) {
+        ArrayList<Completion> completions = new ArrayList<>();
+        if (inFlight != null && now - inFlightSince >= COMMAND_TIMEOUT_MILLIS) {
+            complete(Protocol.ACK_ERROR, "timed out waiting for the game to respond", completions);
+            releaseNext();
+        } else if (plainUnanswered > 0 && now - plainSince >= COMMAND_TIMEOUT_MILLIS) {
+            // The game took them without answering, don't hold up batches for good
+            plainUnanswered = 0;
+            releaseNext();
+        } else if (queueFull) {
+            releaseNext();
+        }
+        return completions;
+    }
+
+    /**
+     * @return when the in flight command or the plain ones time out or a command held back by a
+     * full read queue should be retried, or 0 if none of them is waiting
+     */
+    synchronized long deadline() {
+        if (queueFull) {
+            return System.currentTimeMillis() + QUEUE_FULL_RETRY_MILLIS;
+        }
+        if (plainUnanswered > 0) {
+            return plainSince + COMMAND_TIMEOUT_MILLIS;
+        }
+        return inFlight == null ? 0 : inFlightSince + COMMAND_TIMEOUT_MILLIS;
+    }
+
+    synchronized void drop(ClientConnection client) {
+        pending.removeIf(command -> command.client == client);
+        if (pending.isEmpty()) {
+            queueFull = false;
+        }
+    }
+
+    private void complete(byte status, String message, ArrayList<Completion> completions) {
+        Command done = inFlight;
+        inFlight = null;
+        completions.add(new Completion(done, status, message));
+
+        // Later commands of a failed batch were planned against a state that never happened
+        if (status != Protocol.ACK_OK) {
+            Iterator<Command> rest = pending.iterator();
+            while (rest.hasNext()) {
+                Command command = rest.next();
+                if (command.batch == done.batch) {
+                    rest.remove();
+                    completions.add(new Completion(command, Protocol.ACK_SKIPPED, "skipped after command " + done.id + " failed"));
+                }
+            }
+        }
+    }
+
+    private void releaseNext() {
+        if (inFlight != null || plainUnanswered > 0 || pending.isEmpty()) {
+            return;
+        }
+
+        // Called holding the lock and on the selector thread, so never wait for room. The command
+        // stays first in line and expire() retries it
+        Command next = pending.peek();
+        StepTimer.commandReceived(next.text, next.receivedAt);
+        if (!readQueue.offer(next.text)) {
+            StepTimer.commandRejected(next.text);
+            queueFull = true;
+            return;
+        }
+
+        queueFull = false;
+        inFlight = pending.poll();
+        inFlightSince = System.currentTimeMillis();
+    }
+
+    static class Command {
+        final ClientConnection client;
+        final long id;
+        final String text;
+        final boolean wantState;
+        final Object batch;
+        final long receivedAt;
+
+        Command(ClientConnection client, long id, String text, boolean wantState, Object batch, long receivedAt) {
+            this.client = client;
+            this.id = id;
+            this.text = text;
+            this.wantState = wantState;
+            this.batch = batch;
+            this.receivedAt = receivedAt;
+        }
+    }
+
+    static class Completion {
+        final Command command;
+        final byte status;
+        final String message;
+
+        Completion(Command command, byte status, String message) {
+            this.command = command;
+            this.status = status;
+            this.message = message;
+        }
+    }
+}
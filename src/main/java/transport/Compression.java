@@ -0,0 +1,111 @@
+package transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-connection zlib streams for clients with {@link Protocol#FEATURE_DEFLATE}.
+ *
+ * Each connection keeps a single zlib stream open for its whole lifetime and every compressed
+ * frame ends on a sync flush, so later frames reuse everything earlier frames taught the
+ * compressor. The stream is primed with {@code state_dictionary.txt}, a sample of the field
+ * names, screen types and ids that fill every state, which makes even the first frame small.
+ * Clients in other languages can use the same file, e.g. Python's
+ * {@code zlib.decompressobj(zdict=...)}.
+ */
+public class Compression {
+    public static final String DICTIONARY_RESOURCE = "state_dictionary.txt";
+
+    // Small frames such as acks aren't worth the call into zlib
+    static final int MIN_COMPRESSED_SIZE = 128;
+
+    private static byte[] dictionary = null;
+
+    public static synchronized byte[] dictionary() {
+        if (dictionary == null) {
+            try (InputStream in = Compression.class.getClassLoader()
+                                                   .getResourceAsStream(DICTIONARY_RESOURCE)) {
+                if (in == null) {
+                    System.err.println("missing " + DICTIONARY_RESOURCE + ", compressing without a dictionary");
+                    dictionary = new byte[0];
+                } else {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[8 * 1024];
+                    int read;
+                    while ((read = in.read(buffer)) > 0) {
+                        bytes.write(buffer, 0, read);
+                    }
+                    dictionary = bytes.toByteArray();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                dictionary = new byte[0];
+            }
+        }
+        return dictionary;
+    }
+
+    public static class Compressor {
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final byte[] buffer = new byte[16 * 1024];
+
+        public Compressor() {
+            byte[] dictionary = dictionary();
+            if (dictionary.length > 0) {
+                deflater.setDictionary(dictionary);
+            }
+        }
+
+        public byte[] compress(byte[] input) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 4 + 64);
+            deflater.setInput(input);
+
+            int written;
+            do {
+                written = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                out.write(buffer, 0, written);
+            } while (written == buffer.length || !deflater.needsInput());
+
+            return out.toByteArray();
+        }
+
+        public void end() {
+            deflater.end();
+        }
+    }
+
+    public static class Decompressor {
+        private final Inflater inflater = new Inflater();
+        private final byte[] buffer = new byte[64 * 1024];
+
+        public byte[] decompress(byte[] input) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(input.length * 4);
+            inflater.setInput(input);
+
+            try {
+                while (true) {
+                    int read = inflater.inflate(buffer);
+                    if (read > 0) {
+                        out.write(buffer, 0, read);
+                    } else if (inflater.needsDictionary()) {
+                        inflater.setDictionary(dictionary());
+                    } else if (inflater.needsInput() || inflater.finished()) {
+                        break;
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("corrupt compressed frame", e);
+            }
+
+            return out.toByteArray();
+        }
+
+        public void end() {
+            inflater.end();
+        }
+    }
+}
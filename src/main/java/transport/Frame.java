@@ -0,0 +1,72 @@
+package transport;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An encoded outbound message, header included, split over one or more buffers. A frame that
+ * is broadcast is shared by every client it is queued for, each client writing from its own
+ * {@link #views()}; the pooled buffers go back to the pool once the last reference is released.
+ */
+public class Frame {
+    private final ByteBuffer[] buffers;
+    private final BufferPool pool;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    Frame(List<ByteBuffer> buffers, BufferPool pool) {
+        this.buffers = buffers.toArray(new ByteBuffer[0]);
+        this.pool = pool;
+    }
+
+    public Frame retain() {
+        references.incrementAndGet();
+        return this;
+    }
+
+    public void release() {
+        if (references.decrementAndGet() == 0 && pool != null) {
+            for (ByteBuffer buffer : buffers) {
+                pool.release(buffer);
+            }
+        }
+    }
+
+    public ByteBuffer[] views() {
+        ByteBuffer[] views = new ByteBuffer[buffers.length];
+        for (int i = 0; i < buffers.length; i++) {
+            views[i] = buffers[i].duplicate();
+        }
+        return views;
+    }
+
+    public byte type() {
+        return buffers[0].get(buffers[0].position() + 4);
+    }
+
+    /**
+     * Copies the payload, without the header, out of the frame's buffers.
+     */
+    public byte[] payload() {
+        byte[] payload = new byte[(int) size() - Protocol.HEADER_SIZE];
+        int offset = -Protocol.HEADER_SIZE;
+        for (ByteBuffer view : views()) {
+            if (offset < 0) {
+                view.position(view.position() + Protocol.HEADER_SIZE);
+                offset = 0;
+            }
+            int length = view.remaining();
+            view.get(payload, offset, length);
+            offset += length;
+        }
+        return payload;
+    }
+
+    public long size() {
+        long size = 0;
+        for (ByteBuffer buffer : buffers) {
+            size += buffer.remaining();
+        }
+        return size;
+    }
+}
@@ -0,0 +1,128 @@
+package transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * Builds outbound frames. Text is encoded straight into pooled direct buffers, so a large state
+ * is never materialized as a separate byte array. Not thread safe; use one encoder per thread.
+ */
+public class FrameEncoder {
+    private final BufferPool pool;
+    private final CharsetEncoder utf8 = StandardCharsets.UTF_8.newEncoder()
+                                                              .onMalformedInput(CodingErrorAction.REPLACE)
+                                                              .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    public FrameEncoder(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    public Frame encodeText(byte type, String text) {
+        return encodeText(type, null, text);
+    }
+
+    /**
+     * @param prefix fixed size fields written ahead of the text, at most a few dozen bytes
+     */
+    public Frame encodeText(byte type, ByteBuffer prefix, String text) {
+        ArrayList<ByteBuffer> chunks = new ArrayList<>();
+        ByteBuffer chunk = pool.acquire();
+        chunk.position(Protocol.HEADER_SIZE);
+        if (prefix != null) {
+            chunk.put(prefix);
+        }
+
+        CharBuffer chars = CharBuffer.wrap(text);
+        utf8.reset();
+        boolean flushing = false;
+        while (true) {
+            CoderResult result = flushing ? utf8.flush(chunk) : utf8.encode(chars, chunk, true);
+            if (result.isOverflow()) {
+                chunks.add(chunk);
+                chunk = pool.acquire();
+            } else if (!flushing) {
+                flushing = true;
+            } else {
+                break;
+            }
+        }
+        chunks.add(chunk);
+
+        return finish(type, chunks);
+    }
+
+    public Frame encode(byte type, byte[] payload) {
+        return encode(type, null, payload);
+    }
+
+    /**
+     * @param prefix fixed size fields written ahead of the payload, at most a few dozen bytes
+     */
+    public Frame encode(byte type, ByteBuffer prefix, byte[] payload) {
+        ArrayList<ByteBuffer> chunks = new ArrayList<>();
+        ByteBuffer chunk = pool.acquire();
+        chunk.position(Protocol.HEADER_SIZE);
+        if (prefix != null) {
+            chunk.put(prefix);
+        }
+
+        int offset = 0;
+        while (true) {
+            int length = Math.min(chunk.remaining(), payload.length - offset);
+            chunk.put(payload, offset, length);
+            offset += length;
+            chunks.add(chunk);
+
+            if (offset == payload.length) {
+                break;
+            }
+            chunk = pool.acquire();
+        }
+
+        return finish(type, chunks);
+    }
+
+    /**
+     * Small unpooled frame for handshakes and errors.
+     */
+    public static Frame wrap(byte type, byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.allocate(Protocol.HEADER_SIZE + payload.length);
+        buffer.putInt(payload.length).put(type).put(payload).flip();
+        return new Frame(Collections.singletonList(buffer), null);
+    }
+
+    /**
+     * Encodes a message for clients that still read with {@code DataInputStream.readUTF}.
+     *
+     * @throws UTFDataFormatException if the message is longer than such a client can read
+     */
+    public static Frame legacy(String message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(message.length() + 2);
+        new DataOutputStream(bytes).writeUTF(message);
+        return new Frame(Collections.singletonList(ByteBuffer.wrap(bytes.toByteArray())), null);
+    }
+
+    private Frame finish(byte type, ArrayList<ByteBuffer> chunks) {
+        int payloadLength = -Protocol.HEADER_SIZE;
+        for (ByteBuffer chunk : chunks) {
+            payloadLength += chunk.position();
+            chunk.flip();
+        }
+
+        ByteBuffer header = chunks.get(0);
+        header.putInt(0, payloadLength);
+        header.put(4, type);
+
+        return new Frame(chunks, pool);
+    }
+}
@@ -0,0 +1,30 @@
+package transport;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class InboundFrame {
+    public final byte type;
+    public final byte[] payload;
+
+    public InboundFrame(byte type, byte[] payload) {
+        this.type = type;
+        this.payload = payload;
+    }
+
+    public String text() {
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    public ByteBuffer buffer() {
+        return ByteBuffer.wrap(payload);
+    }
+
+    @Override
+    public String toString() {
+        return "InboundFrame{" +
+                "type=" + type +
+                ", length=" + payload.length +
+                '}';
+    }
+}
@@ -0,0 +1,546 @@
+package transport;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * A small HTTP/1.1 and WebSocket server for tools running next to the game, such as browser
+ * sources. It only ever binds to the loopback interface.
+ *
+ * Binding to loopback doesn't keep out the web pages the streamer has open, so requests are
+ * refused with a 403 unless their Host names the loopback interface, which defeats DNS
+ * rebinding, and their Origin, if the browser sent one, is this server's own, so only pages it
+ * served itself can open a WebSocket or read a response.
+ *
+ * Every connection is served by a thread of its own from {@link Threads}, virtual on Java 21,
+ * so handlers may block. Connections are kept alive between requests until the client closes them or stays
+ * idle for {@link #READ_TIMEOUT_MILLIS}. WebSocket endpoints only push text messages; anything the browser sends other than pings and
+ * close frames is ignored.
+ */
+public class LocalHttpServer implements Runnable, Closeable {
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int MAX_HEADER_BYTES = 16 * 1024;
+    private static final int READ_TIMEOUT_MILLIS = 10_000;
+
+    public interface Handler {
+        Response handle(Request request) throws IOException, InterruptedException;
+    }
+
+    private final ServerSocket serverSocket;
+    private final Map<String, Handler> routes = new ConcurrentHashMap<>();
+    private final Map<String, WebSocketEndpoint> webSockets = new ConcurrentHashMap<>();
+    private final ExecutorService connections = Threads.perTaskExecutor("local http");
+
+    public LocalHttpServer(int port) throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    public void route(String path, Handler handler) {
+        routes.put(path, handler);
+    }
+
+    /**
+     * @param greeting the messages a newly connected client is sent first, such as the current
+     *                 state of whatever the endpoint reports on
+     */
+    public WebSocketEndpoint webSocket(String path, Supplier<List<String>> greeting) {
+        WebSocketEndpoint endpoint = new WebSocketEndpoint(path, greeting);
+        webSockets.put(path, endpoint);
+        return endpoint;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        connections.shutdownNow();
+        for (WebSocketEndpoint endpoint : webSockets.values()) {
+            endpoint.closeAll();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+
+            Request request;
+            while ((request = Request.read(in)) != null) {
+                if (!isLocal(request)) {
+                    Response.text(403, "only pages served from 127.0.0.1:" + getPort() + " may connect").write(out, false);
+                    break;
+                }
+
+                WebSocketEndpoint endpoint = webSockets.get(request.path);
+                if (endpoint != null && "websocket".equalsIgnoreCase(request.headers.get("upgrade"))) {
+                    endpoint.attach(socket, in, out, request);
+                    return;
+                }
+
+                Handler handler = routes.get(request.path);
+                Response response;
+                if (handler == null) {
+                    response = Response.text(404, "not found");
+                } else if (!request.method.equals("GET")) {
+                    response = Response.text(405, "only GET is supported");
+                } else {
+                    response = handler.handle(request);
+                }
+
+                boolean keepAlive = request.keepAlive();
+                response.write(out, keepAlive);
+                if (!keepAlive) {
+                    break;
+                }
+            }
+            socket.close();
+        } catch (IOException | InterruptedException e) {
+            try {
+                socket.close();
+            } catch (IOException closeFailed) {
+                e.addSuppressed(closeFailed);
+            }
+        }
+    }
+
+    private boolean isLocal(Request request) {
+        String host = request.headers.get("host");
+        if (host != null && !isLoopbackAuthority(host)) {
+            return false;
+        }
+
+        String origin = request.headers.get("origin");
+        if (origin == null) {
+            return true;
+        }
+        String prefix = "http://";
+        return origin.startsWith(prefix) && isLoopbackAuthority(origin.substring(prefix.length()))
+                && origin.endsWith(":" + getPort());
+    }
+
+    /**
+     * @param authority a host with an optional port
+     */
+    private static boolean isLoopbackAuthority(String authority) {
+        String host = authority.toLowerCase(Locale.ROOT);
+        if (host.startsWith("[")) {
+            int end = host.indexOf(']');
+            host = end < 0 ? host : host.substring(1, end);
+        } else if (host.indexOf(':') >= 0) {
+            host = host.substring(0, host.indexOf(':'));
+        }
+        return host.equals("127.0.0.1") || host.equals("localhost") || host.equals("::1");
+    }
+
+    public static class Request {
+        public final String method;
+        public final String path;
+        public final String version;
+        public final Map<String, String> query;
+        // Names are lower case
+        public final Map<String, String> headers;
+
+        Request(String method, String path, String version, Map<String, String> query, Map<String, String> headers) {
+            this.method = method;
+            this.path = path;
+            this.version = version;
+            this.query = query;
+            this.headers = headers;
+        }
+
+        /**
+         * @return null if the connection closed before a request arrived
+         */
+        static Request read(InputStream in) throws IOException {
+            String requestLine = readLine(in);
+            if (requestLine == null || requestLine.isEmpty()) {
+                return null;
+            }
+
+            String[] parts = requestLine.split(" ");
+            if (parts.length != 3) {
+                throw new IOException("malformed request line " + requestLine);
+            }
+
+            HashMap<String, String> headers = new HashMap<>();
+            int headerBytes = 0;
+            String line;
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                headerBytes += line.length();
+                if (headerBytes > MAX_HEADER_BYTES) {
+                    throw new IOException("request headers too large");
+                }
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line
+                            .substring(colon + 1).trim());
+                }
+            }
+
+            String target = parts[1];
+            LinkedHashMap<String, String> query = new LinkedHashMap<>();
+            int questionMark = target.indexOf('?');
+            if (questionMark >= 0) {
+                for (String pair : target.substring(questionMark + 1).split("&")) {
+                    if (pair.isEmpty()) {
+                        continue;
+                    }
+                    int equals = pair.indexOf('=');
+                    String name = equals < 0 ? pair : pair.substring(0, equals);
+                    String value = equals < 0 ? "" : pair.substring(equals + 1);
+                    query.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+                }
+                target = target.substring(0, questionMark);
+            }
+
+            return new Request(parts[0], target, parts[2], query, headers);
+        }
+
+        boolean keepAlive() {
+            String connection = headers.getOrDefault("connection", "");
+            if (version.equals("HTTP/1.0")) {
+                return connection.equalsIgnoreCase("keep-alive");
+            }
+            return !connection.equalsIgnoreCase("close");
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int next;
+            while ((next = in.read()) != '\n') {
+                if (next < 0) {
+                    return line.length() == 0 ? null : line.toString();
+                }
+                if (line.length() > MAX_HEADER_BYTES) {
+                    throw new IOException("request line too long");
+                }
+                if (next != '\r') {
+                    line.append((char) next);
+                }
+            }
+            return line.toString();
+        }
+    }
+
+    public static class Response {
+        public final int status;
+        public final String contentType;
+        public final byte[] body;
+        public final Map<String, String> headers = new LinkedHashMap<>();
+
+        public Response(int status, String contentType, byte[] body) {
+            this.status = status;
+            this.contentType = contentType;
+            this.body = body;
+        }
+
+        public static Response text(int status, String text) {
+            return new Response(status, "text/plain; charset=utf-8", text
+                    .getBytes(StandardCharsets.UTF_8));
+        }
+
+        public Response header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+        void write(OutputStream out, boolean keepAlive) throws IOException {
+            StringBuilder head = new StringBuilder();
+            head.append("HTTP/1.1 ").append(status).append(' ').append(reason(status))
+                .append("\r\n");
+            if (contentType != null) {
+                head.append("Content-Type: ").append(contentType).append("\r\n");
+            }
+            // A 304 has no body, its length would be that of the body the client already has
+            if (status != 304) {
+                head.append("Content-Length: ").append(body.length).append("\r\n");
+            }
+            head.append("Cache-Control: no-cache\r\n");
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                head.append(header.getKey()).append(": ").append(header.getValue())
+                    .append("\r\n");
+            }
+            head.append(keepAlive ? "Connection: keep-alive\r\n\r\n" : "Connection: close\r\n\r\n");
+
+            out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+            if (status != 304) {
+                out.write(body);
+            }
+            out.flush();
+        }
+
+        private static String reason(int status) {
+            switch (status) {
+                case 200:
+                    return "OK";
+                case 101:
+                    return "Switching Protocols";
+                case 204:
+                    return "No Content";
+                case 304:
+                    return "Not Modified";
+                case 400:
+                    return "Bad Request";
+                case 403:
+                    return "Forbidden";
+                case 404:
+                    return "Not Found";
+                case 405:
+                    return "Method Not Allowed";
+                case 503:
+                    return "Service Unavailable";
+                default:
+                    return "Status";
+            }
+        }
+    }
+
+    /**
+     * Pushes text messages to every browser attached to one path. {@link #send(String)} never
+     * blocks: messages are written by the endpoint's own thread, and are dropped if that falls
+     * more than {@link #MAX_QUEUED} behind.
+     */
+    public static class WebSocketEndpoint {
+        static final int MAX_QUEUED = 256;
+
+        private static final int OPCODE_TEXT = 0x1;
+        private static final int OPCODE_CLOSE = 0x8;
+        private static final int OPCODE_PING = 0x9;
+        private static final int OPCODE_PONG = 0xA;
+        private static final int CLOSE_PROTOCOL_ERROR = 1002;
+
+        private final String path;
+        private final Supplier<List<String>> greeting;
+        private final Set<Peer> peers = ConcurrentHashMap.newKeySet();
+        private final RingBufferQueue<byte[]> outbox = new RingBufferQueue<>(MAX_QUEUED, RingBufferQueue.WaitStrategy.PARK, true);
+
+        WebSocketEndpoint(String path, Supplier<List<String>> greeting) {
+            this.path = path;
+            this.greeting = greeting;
+
+            Threads.start("websocket " + path, this::sendLoop);
+        }
+
+        public void send(String text) {
+            if (!peers.isEmpty()) {
+                outbox.offer(frame(OPCODE_TEXT, text.getBytes(StandardCharsets.UTF_8)));
+            }
+        }
+
+        public int getClientCount() {
+            return peers.size();
+        }
+
+        void attach(Socket socket, InputStream in, OutputStream out, Request request) throws IOException {
+            String key = request.headers.get("sec-websocket-key");
+            if (key == null) {
+                Response.text(400, "missing Sec-WebSocket-Key").write(out, false);
+                socket.close();
+                return;
+            }
+
+            Response upgrade = new Response(101, null, new byte[0]);
+            upgrade.headers.put("Upgrade", "websocket");
+            upgrade.headers.put("Connection", "Upgrade");
+            upgrade.headers.put("Sec-WebSocket-Accept", acceptKey(key));
+            writeUpgrade(upgrade, out);
+            socket.setSoTimeout(0);
+
+            Peer peer = new Peer(socket, out);
+            for (String message : greeting.get()) {
+                peer.write(frame(OPCODE_TEXT, message.getBytes(StandardCharsets.UTF_8)));
+            }
+            peers.add(peer);
+            System.err.println("overlay client attached to " + path + " (" + peers.size() + " total)");
+
+            try {
+                readLoop(peer, new DataInputStream(in));
+            } catch (IOException e) {
+                // The browser went away
+            } finally {
+                drop(peer);
+            }
+        }
+
+        void closeAll() {
+            for (Peer peer : peers) {
+                drop(peer);
+            }
+        }
+
+        private void readLoop(Peer peer, DataInputStream in) throws IOException {
+            while (true) {
+                int first = in.readUnsignedByte();
+                int second = in.readUnsignedByte();
+                int opcode = first & 0x0F;
+
+                long length = second & 0x7F;
+                if (length == 126) {
+                    length = in.readUnsignedShort();
+                } else if (length == 127) {
+                    length = in.readLong();
+                }
+                if (length < 0 || length > MAX_HEADER_BYTES) {
+                    throw new IOException("websocket frame too large");
+                }
+
+                // Browsers always mask, RFC 6455 has the server fail a connection that doesn't
+                if ((second & 0x80) == 0) {
+                    peer.write(frame(OPCODE_CLOSE, ByteBuffer.allocate(2).putShort((short) CLOSE_PROTOCOL_ERROR).array()));
+                    throw new IOException("unmasked websocket frame");
+                }
+                byte[] mask = new byte[4];
+                in.readFully(mask);
+                byte[] payload = new byte[(int) length];
+                in.readFully(payload);
+                for (int i = 0; i < payload.length; i++) {
+                    payload[i] ^= mask[i % 4];
+                }
+
+                if (opcode == OPCODE_CLOSE) {
+                    peer.write(frame(OPCODE_CLOSE, new byte[0]));
+                    throw new EOFException();
+                } else if (opcode == OPCODE_PING) {
+                    peer.write(frame(OPCODE_PONG, payload));
+                }
+            }
+        }
+
+        private void sendLoop() {
+            try {
+                while (true) {
+                    byte[] frame = outbox.take();
+                    for (Peer peer : peers) {
+                        try {
+                            peer.write(frame);
+                        } catch (IOException e) {
+                            drop(peer);
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void drop(Peer peer) {
+            if (peers.remove(peer)) {
+                System.err.println("overlay client detached from " + path);
+            }
+            try {
+                peer.socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private static void writeUpgrade(Response upgrade, OutputStream out) throws IOException {
+            StringBuilder head = new StringBuilder("HTTP/1.1 101 Switching Protocols\r\n");
+            for (Map.Entry<String, String> header : upgrade.headers.entrySet()) {
+                head.append(header.getKey()).append(": ").append(header.getValue())
+                    .append("\r\n");
+            }
+            head.append("\r\n");
+            out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+        }
+
+        private static String acceptKey(String key) {
+            try {
+                MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+                return Base64.getEncoder().encodeToString(sha1.digest((key + WEBSOCKET_GUID)
+                        .getBytes(StandardCharsets.ISO_8859_1)));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * A single unmasked, unfragmented frame, as servers send them.
+         */
+        private static byte[] frame(int opcode, byte[] payload) {
+            ByteBuffer frame = ByteBuffer.allocate(10 + payload.length);
+            frame.put((byte) (0x80 | opcode));
+            if (payload.length < 126) {
+                frame.put((byte) payload.length);
+            } else if (payload.length <= 0xFFFF) {
+                frame.put((byte) 126).putShort((short) payload.length);
+            } else {
+                frame.put((byte) 127).putLong(payload.length);
+            }
+            frame.put(payload);
+
+            byte[] bytes = new byte[frame.position()];
+            frame.flip();
+            frame.get(bytes);
+            return bytes;
+        }
+
+        private static class Peer {
+            final Socket socket;
+            final OutputStream out;
+            // Not synchronized, a virtual thread blocking in a monitor would pin its carrier
+            private final ReentrantLock writeLock = new ReentrantLock();
+
+            Peer(Socket socket, OutputStream out) {
+                this.socket = socket;
+                this.out = out;
+            }
+
+            void write(byte[] frame) throws IOException {
+                writeLock.lock();
+                try {
+                    out.write(frame);
+                    out.flush();
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+        }
+    }
+}
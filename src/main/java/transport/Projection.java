@@ -0,0 +1,108 @@
+package transport;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+/**
+ * The subset of a state a client subscribed to, as a set of dotted field paths such as
+ * {@code game_state.combat_state.monsters} or {@code available_commands}.
+ *
+ * A path keeps the whole subtree under the field it names. When a path runs into an array the
+ * rest of the path is applied to each element, so {@code game_state.combat_state.monsters.current_hp}
+ * keeps a list of objects that only hold {@code current_hp}.
+ */
+public class Projection {
+    /**
+     * Paths sorted and joined, identical for clients that asked for the same fields.
+     */
+    public final String key;
+    private final ArrayList<String[]> paths = new ArrayList<>();
+
+    private Projection(TreeSet<String> paths) {
+        this.key = String.join(" ", paths);
+        for (String path : paths) {
+            this.paths.add(path.split("\\."));
+        }
+    }
+
+    /**
+     * @param spec paths separated by whitespace or commas
+     * @return null if the spec names no paths, meaning the full state
+     */
+    public static Projection parse(String spec) {
+        TreeSet<String> paths = new TreeSet<>();
+        for (String path : spec.split("[\\s,]+")) {
+            if (!path.isEmpty()) {
+                paths.add(path);
+            }
+        }
+
+        // A path already kept whole makes any path below it redundant
+        String covering = null;
+        for (String path : new ArrayList<>(paths)) {
+            if (covering != null && path.startsWith(covering + ".")) {
+                paths.remove(path);
+            } else {
+                covering = path;
+            }
+        }
+
+        return paths.isEmpty() ? null : new Projection(paths);
+    }
+
+    public JsonObject apply(JsonObject state) {
+        JsonObject result = new JsonObject();
+        for (String[] path : paths) {
+            copy(state, result, path, 0);
+        }
+        return result;
+    }
+
+    private static void copy(JsonObject from, JsonObject to, String[] path, int depth) {
+        JsonElement value = from.get(path[depth]);
+        if (value == null) {
+            return;
+        }
+
+        if (depth == path.length - 1) {
+            to.add(path[depth], value);
+            return;
+        }
+
+        if (value.isJsonObject()) {
+            JsonElement existing = to.get(path[depth]);
+            JsonObject child = existing != null && existing.isJsonObject() ? existing
+                    .getAsJsonObject() : new JsonObject();
+            to.add(path[depth], child);
+            copy(value.getAsJsonObject(), child, path, depth + 1);
+        } else if (value.isJsonArray()) {
+            JsonElement existing = to.get(path[depth]);
+            JsonArray target = existing != null && existing.isJsonArray() ? existing
+                    .getAsJsonArray() : new JsonArray();
+            to.add(path[depth], target);
+            copyElements(value.getAsJsonArray(), target, path, depth + 1);
+        }
+    }
+
+    private static void copyElements(JsonArray from, JsonArray to, String[] path, int depth) {
+        for (int i = 0; i < from.size(); i++) {
+            JsonElement element = from.get(i);
+            if (i >= to.size()) {
+                to.add(new JsonObject());
+            }
+            if (element.isJsonObject() && to.get(i).isJsonObject()) {
+                copy(element.getAsJsonObject(), to.get(i).getAsJsonObject(), path, depth);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Projection" + Arrays.toString(key.split(" "));
+    }
+}
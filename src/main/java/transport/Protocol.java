@@ -0,0 +1,162 @@
+package transport;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Wire format of the framed socket protocol.
+ *
+ * A framed client opens the connection by sending {@link #MAGIC} followed by a HELLO frame.
+ * Clients that skip the magic are treated as legacy clients and keep speaking
+ * {@link DataOutputStream#writeUTF(String)} messages, so old and new clients can share a server.
+ *
+ * Every frame is a 4 byte big-endian payload length, a 1 byte frame type and the payload:
+ * <pre>
+ *   HELLO   client: [byte version][int requested features], then with FEATURE_RESUME
+ *                   optionally [long session id][long last seq applied]
+ *           server: [byte version][int accepted features], then with FEATURE_RESUME
+ *                   [long session id][byte 1 if the session was resumed, else 0]
+ *   TEXT    UTF-8 text, a state from the server or a command from the client
+ *   BINARY  opaque bytes; from the server, a {@link BinaryStateEncoder} document for clients
+ *           with {@link #FEATURE_BINARY}
+ *   ERROR   UTF-8 reason, sent by the server right before it closes the connection
+ *   STATE   [long seq][UTF-8 JSON state], a keyframe for clients with {@link #FEATURE_DELTA}
+ *   DELTA   [long seq][long base seq][UTF-8 JSON patch], see {@link StateDiff}
+ *   RESYNC  client, empty; asks for a fresh keyframe when a delta's base seq isn't the last
+ *           seq the client applied
+ *   SUBSCRIBE  client, UTF-8 field paths separated by spaces; from then on states only hold
+ *           those fields, see {@link Projection}. No paths means the full state again
+ *   BATCH   client, [byte flags][int count] then per command [long id][int length][UTF-8]
+ *   ACK     server, [long id][byte status][int length][UTF-8 message] then, if the BATCH asked
+ *           for the state, [long seq with {@link #FEATURE_DELTA}][UTF-8 JSON state, or binary
+ *           with {@link #FEATURE_BINARY}]
+ *   TIMING  server, [long seq][long origin wall clock millis] then 7 longs of nanoseconds, see
+ *           {@link StepTiming}
+ *   SAVESTATE  [short name length][UTF-8 name][snapshot], see {@link SaveStateTransfer}
+ * </pre>
+ *
+ * Commands in a BATCH are pipelined, see {@link CommandSequencer}: the server runs them one
+ * after the other as soon as the game is ready and answers each with an ACK whose status is
+ * {@link #ACK_OK}, {@link #ACK_ERROR} with the game's error message, or {@link #ACK_SKIPPED}
+ * for commands after a failed one in the same batch. An ACK follows the state the command
+ * produced. With {@link #BATCH_ACK_WITH_STATE} the ACK itself carries that state, encoded like any
+ * other document sent to the client, after its projection if the client subscribed to one, and the client isn't sent it separately.
+ * For a client with {@link #FEATURE_DELTA} that state is also its new delta base and the seq to
+ * resume from, as if it had come in a STATE frame.
+ * Command ids are chosen by the client and only echoed back.
+ *
+ * With {@link #FEATURE_DELTA} every state carries a sequence number; messages that aren't
+ * states, such as command errors, still come as TEXT frames and don't change the delta base.
+ *
+ * With {@link #FEATURE_BINARY} every JSON document the server sends, whether a whole message or
+ * the body of a STATE or DELTA frame or the state in an ACK, is binary encoded instead, and TEXT
+ * frames become BINARY. A state too malformed to parse is encoded as a string holding its text.
+ *
+ * With {@link #FEATURE_RESUME}, which is only granted together with {@link #FEATURE_DELTA},
+ * the server remembers the client's session for a while after its connection drops. A client
+ * that reconnects with its session id and the seq of the last state it applied gets its
+ * subscription back and is sent every message since that state, states as deltas against it, as
+ * long as the server still holds them; otherwise it gets a keyframe of the latest state. Since
+ * non-state messages carry no seq, one the client already saw may be sent again. Commands it had
+ * pipelined but not yet been acked for are dropped with the connection.
+ *
+ * With {@link #FEATURE_TIMING} every state the client is sent, as a frame of its own or in an
+ * ACK, is followed by a TIMING frame saying how long the command that led to it spent in the
+ * read queue, executing and waiting for the game to settle, and how long the state took to
+ * serialize and to get through the write queue. Stamps that weren't taken, such as those of a
+ * command sent by another transport, are -1. The seq is that of the state, so clients without
+ * {@link #FEATURE_DELTA} can only go by the order of frames.
+ *
+ * With {@link #FEATURE_SAVESTATE} the client is sent a SAVESTATE frame with the snapshot of every
+ * state a {@code savestate export [statename]} command exports, ahead of that command's answer.
+ * A client of any features may send a SAVESTATE frame for a {@code savestate import [statename]}
+ * it sends after it.
+ *
+ * With {@link #FEATURE_DEFLATE} the server may set {@link #FLAG_COMPRESSED} on the type of any
+ * frame after HELLO. The payload of such a frame is the next piece of the connection's zlib
+ * stream, see {@link Compression}; inflating it yields the payload the frame would have had.
+ */
+public final class Protocol {
+    /**
+     * A legacy client would have to send a 65535 byte command to start with these bytes.
+     */
+    public static final byte[] MAGIC = {(byte) 0xFF, (byte) 0xFF, 'C', 'M'};
+    public static final byte VERSION = 1;
+
+    public static final int HEADER_SIZE = 5;
+    public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    public static final byte FRAME_HELLO = 1;
+    public static final byte FRAME_TEXT = 2;
+    public static final byte FRAME_BINARY = 3;
+    public static final byte FRAME_ERROR = 4;
+    public static final byte FRAME_STATE = 5;
+    public static final byte FRAME_DELTA = 6;
+    public static final byte FRAME_RESYNC = 7;
+    public static final byte FRAME_SUBSCRIBE = 8;
+    public static final byte FRAME_BATCH = 9;
+    public static final byte FRAME_ACK = 10;
+    public static final byte FRAME_TIMING = 11;
+    public static final byte FRAME_SAVESTATE = 12;
+
+    public static final byte BATCH_ACK_WITH_STATE = 1;
+
+    public static final byte ACK_OK = 0;
+    public static final byte ACK_ERROR = 1;
+    public static final byte ACK_SKIPPED = 2;
+
+    public static final byte FLAG_COMPRESSED = (byte) 0x80;
+    public static final byte TYPE_MASK = 0x7F;
+
+    public static final int FEATURE_DELTA = 1;
+    public static final int FEATURE_BINARY = 2;
+    public static final int FEATURE_DEFLATE = 4;
+    public static final int FEATURE_RESUME = 8;
+    public static final int FEATURE_TIMING = 16;
+    public static final int FEATURE_SAVESTATE = 32;
+
+    public static final int SUPPORTED_FEATURES = FEATURE_DELTA | FEATURE_BINARY | FEATURE_DEFLATE | FEATURE_RESUME | FEATURE_TIMING | FEATURE_SAVESTATE;
+
+    private Protocol() {
+    }
+
+    /**
+     * Opens a framed connection from the client side: the magic bytes and the HELLO frame.
+     */
+    public static void writeHandshake(DataOutputStream out, int features) throws IOException {
+        out.write(MAGIC);
+        writeFrame(out, FRAME_HELLO, ByteBuffer.allocate(5).put(VERSION).putInt(features)
+                                               .array());
+    }
+
+    /**
+     * Handshake for a client resuming a session, see {@link #FEATURE_RESUME}.
+     */
+    public static void writeHandshake(DataOutputStream out, int features, long sessionId, long lastSeq) throws IOException {
+        out.write(MAGIC);
+        writeFrame(out, FRAME_HELLO, ByteBuffer.allocate(21).put(VERSION).putInt(features)
+                                               .putLong(sessionId).putLong(lastSeq).array());
+    }
+
+    public static void writeFrame(DataOutputStream out, byte type, byte[] payload) throws IOException {
+        out.writeInt(payload.length);
+        out.writeByte(type);
+        out.write(payload);
+        out.flush();
+    }
+
+    public static InboundFrame readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException("invalid frame length " + length);
+        }
+
+        byte type = in.readByte();
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+
+        return new InboundFrame(type, payload);
+    }
+}
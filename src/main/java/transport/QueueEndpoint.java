@@ -0,0 +1,51 @@
+package transport;
+
+import com.google.gson.JsonObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * Serves the depths of CommunicationMod's read and write queues at /queues, to tell a game that
+ * can't keep up with its client from a client that can't keep up with its game.
+ *
+ * The queues are looked up on every request since a controller may swap them after the server
+ * starts. For a {@link RingBufferQueue} the response also has its capacity and the most it has
+ * held at once.
+ */
+public class QueueEndpoint {
+    public static final String PATH = "/queues";
+
+    private final Supplier<BlockingQueue<String>> readQueue;
+    private final Supplier<BlockingQueue<String>> writeQueue;
+
+    public QueueEndpoint(LocalHttpServer server, Supplier<BlockingQueue<String>> readQueue, Supplier<BlockingQueue<String>> writeQueue) {
+        this.readQueue = readQueue;
+        this.writeQueue = writeQueue;
+        server.route(PATH, request -> handle());
+    }
+
+    private LocalHttpServer.Response handle() {
+        JsonObject queues = new JsonObject();
+        queues.add("read", describe(readQueue.get()));
+        queues.add("write", describe(writeQueue.get()));
+        return new LocalHttpServer.Response(200, "application/json; charset=utf-8", queues.toString()
+                .getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static JsonObject describe(BlockingQueue<String> queue) {
+        JsonObject stats = new JsonObject();
+        if (queue == null) {
+            return stats;
+        }
+
+        stats.addProperty("size", queue.size());
+        if (queue instanceof RingBufferQueue) {
+            RingBufferQueue<String> ring = (RingBufferQueue<String>) queue;
+            stats.addProperty("capacity", ring.capacity());
+            stats.addProperty("max_depth", ring.getMaxDepth());
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,77 @@
+package transport;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The most recent outbound messages, kept so that a client resuming its session can be sent
+ * what it missed while it was away. Bounded both by message count and by total size, whichever
+ * is reached first; the oldest messages are dropped.
+ *
+ * Only the text of each message is held, so the size cap is what the buffer really costs. The
+ * snapshots it hands out are copies whose trees are parsed again if needed and then dropped
+ * with them.
+ */
+class ReplayBuffer {
+    private final int maxMessages;
+    private final long maxChars;
+
+    private final ArrayDeque<Snapshot> messages = new ArrayDeque<>();
+    private long chars = 0;
+
+    ReplayBuffer(int maxMessages, long maxChars) {
+        this.maxMessages = maxMessages;
+        this.maxChars = maxChars;
+    }
+
+    synchronized void add(Snapshot snapshot) {
+        snapshot = snapshot.withoutTree();
+        messages.addLast(snapshot);
+        chars += snapshot.message.length();
+
+        // Always keep the newest message, it is what late joiners are sent
+        while (messages.size() > 1 && (messages.size() > maxMessages || chars > maxChars)) {
+            chars -= messages.removeFirst().message.length();
+        }
+    }
+
+    synchronized Snapshot latest() {
+        Snapshot latest = messages.peekLast();
+        return latest == null ? null : latest.withoutTree();
+    }
+
+    /**
+     * @return the newest state with a seq of at most {@code seq}, or null if it's no longer held
+     */
+    synchronized Snapshot stateAtOrBefore(long seq) {
+        Snapshot found = null;
+        for (Snapshot snapshot : messages) {
+            if (snapshot.seq > seq) {
+                break;
+            }
+            if (snapshot.isState()) {
+                found = snapshot;
+            }
+        }
+        return found == null ? null : found.withoutTree();
+    }
+
+    /**
+     * @return every message after {@code seq}, oldest first, or null if some were already dropped
+     */
+    synchronized List<Snapshot> after(long seq) {
+        Snapshot oldest = messages.peekFirst();
+        if (oldest == null || oldest.seq > seq + 1) {
+            return null;
+        }
+
+        ArrayList<Snapshot> missed = new ArrayList<>();
+        for (Snapshot snapshot : messages) {
+            if (snapshot.seq > seq) {
+                missed.add(snapshot.withoutTree());
+            }
+        }
+        return missed;
+    }
+}
@@ -0,0 +1,266 @@
+package transport;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded queue over a preallocated ring for CommunicationMod's read and write queues, which
+ * are drained by a single thread each. Offering and polling allocate nothing and take no locks,
+ * and a consumer that waits in {@link #take()} doesn't burn a core unless told to.
+ *
+ * There must only ever be one consumer. Producers must be single too unless the queue is created
+ * with multipleProducers, which costs a CAS per offer; the socket read queue, for one, is fed by
+ * both the selector thread and the thread pipelined commands are released from.
+ *
+ * {@link #add(Object)} waits for room instead of throwing when the queue is full. CommunicationMod
+ * and the controllers enqueue with add, so this is what makes a slow consumer hold up its
+ * producer rather than crash it or let the queue grow without bound. Producers that mustn't wait,
+ * like the socket server's selector, use {@link #offer(Object)} and handle a full queue themselves.
+ */
+public class RingBufferQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+    public enum WaitStrategy {
+        // Lowest latency, keeps a core busy while waiting
+        SPIN,
+        YIELD,
+        // Parks the waiting thread, a waiting consumer is woken by the next offer
+        PARK
+    }
+
+    private static final int SPIN_TRIES = 1000;
+    private static final long PRODUCER_PARK_NANOS = 50_000;
+
+    private final AtomicReferenceArray<E> slots;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+    private final boolean multipleProducers;
+
+    // Both only grow. A slot is free when it's null, so the consumer doesn't need to read tail
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private volatile Thread waitingConsumer = null;
+    private volatile int maxDepth = 0;
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public RingBufferQueue(int capacity, WaitStrategy waitStrategy, boolean multipleProducers) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.waitStrategy = waitStrategy;
+        this.multipleProducers = multipleProducers;
+    }
+
+    @Override
+    public boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+
+        long position;
+        if (multipleProducers) {
+            do {
+                position = tail.get();
+                if (position - head.get() > mask) {
+                    return false;
+                }
+            } while (!tail.compareAndSet(position, position + 1));
+        } else {
+            position = tail.get();
+            if (position - head.get() > mask) {
+                return false;
+            }
+            tail.lazySet(position + 1);
+        }
+        // A full store, so that reading waitingConsumer below can't move ahead of it
+        slots.set((int) position & mask, element);
+
+        int depth = (int) (position + 1 - head.get());
+        if (depth > maxDepth) {
+            maxDepth = depth;
+        }
+
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    @Override
+    public E poll() {
+        long position = head.get();
+        int index = (int) position & mask;
+        E element = slots.get(index);
+        if (element == null) {
+            return null;
+        }
+
+        slots.lazySet(index, null);
+        head.lazySet(position + 1);
+        return element;
+    }
+
+    @Override
+    public E peek() {
+        return slots.get((int) head.get() & mask);
+    }
+
+    @Override
+    public boolean add(E element) {
+        try {
+            put(element);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for room", e);
+        }
+        return true;
+    }
+
+    @Override
+    public void put(E element) throws InterruptedException {
+        for (int attempt = 0; !offer(element); attempt++) {
+            waitForRoom(attempt);
+        }
+    }
+
+    @Override
+    public boolean offer(E element, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (int attempt = 0; !offer(element); attempt++) {
+            if (System.nanoTime() >= deadline) {
+                return false;
+            }
+            waitForRoom(attempt);
+        }
+        return true;
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        return poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        long deadline = System.nanoTime() + remaining;
+
+        E element;
+        for (int attempt = 0; (element = poll()) == null; attempt++) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (remaining != Long.MAX_VALUE && System.nanoTime() >= deadline) {
+                return null;
+            }
+
+            if (waitStrategy == WaitStrategy.SPIN || attempt < SPIN_TRIES) {
+                continue;
+            }
+            if (waitStrategy == WaitStrategy.YIELD) {
+                Thread.yield();
+                continue;
+            }
+
+            // Announce ourselves before the last check so an offer in between can't be missed
+            waitingConsumer = Thread.currentThread();
+            if ((element = poll()) != null) {
+                waitingConsumer = null;
+                break;
+            }
+            if (remaining == Long.MAX_VALUE) {
+                LockSupport.park(this);
+            } else {
+                LockSupport.parkNanos(this, deadline - System.nanoTime());
+            }
+            waitingConsumer = null;
+        }
+        return element;
+    }
+
+    /**
+     * Number of queued elements, for monitoring; may be stale by the time it returns.
+     */
+    @Override
+    public int size() {
+        long depth = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(depth, mask + 1));
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return peek() == null;
+    }
+
+    /**
+     * The most elements the queue has held at once, a sign of a consumer falling behind.
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return capacity() - size();
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> collection) {
+        return drainTo(collection, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> collection, int maxElements) {
+        int drained = 0;
+        E element;
+        while (drained < maxElements && (element = poll()) != null) {
+            collection.add(element);
+            drained++;
+        }
+        return drained;
+    }
+
+    /**
+     * A snapshot of the queued elements; removing through it isn't supported.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        ArrayList<E> snapshot = new ArrayList<>();
+        long end = tail.get();
+        for (long position = head.get(); position < end; position++) {
+            E element = slots.get((int) position & mask);
+            if (element != null) {
+                snapshot.add(element);
+            }
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+
+    private void waitForRoom(int attempt) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+
+        if (waitStrategy == WaitStrategy.SPIN || attempt < SPIN_TRIES) {
+            return;
+        }
+        if (waitStrategy == WaitStrategy.YIELD) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(this, PRODUCER_PARK_NANOS);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package transport;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Access to the mapped file of a {@link SharedMemoryRing}, in native byte order. This is the Java 8
+ * version: buffer accesses are plain, so a volatile store and load of a field stand in for the
+ * fences around the cursors. On Java 21 and later the multi-release jar replaces it with the one
+ * in src/main/java21, which uses acquire and release VarHandle modes. Both must keep the same
+ * methods.
+ */
+final class RingMemory {
+    private final ByteBuffer buffer;
+    // Views for the bulk copies, whose positions the producer and the consumer each have to own
+    private final ByteBuffer writer;
+    private final ByteBuffer reader;
+    private volatile int fence;
+
+    RingMemory(MappedByteBuffer mapped) {
+        buffer = mapped.order(ByteOrder.nativeOrder());
+        writer = mapped.duplicate();
+        reader = mapped.duplicate();
+    }
+
+    int getInt(int offset) {
+        return buffer.getInt(offset);
+    }
+
+    void putInt(int offset, int value) {
+        buffer.putInt(offset, value);
+    }
+
+    int getIntAcquire(int offset) {
+        int value = buffer.getInt(offset);
+        fullFence();
+        return value;
+    }
+
+    void putIntRelease(int offset, int value) {
+        fullFence();
+        buffer.putInt(offset, value);
+    }
+
+    long getLongAcquire(int offset) {
+        long value = buffer.getLong(offset);
+        fullFence();
+        return value;
+    }
+
+    void putLongRelease(int offset, long value) {
+        fullFence();
+        buffer.putLong(offset, value);
+    }
+
+    void read(int offset, byte[] destination) {
+        reader.position(offset);
+        reader.get(destination);
+    }
+
+    void write(int offset, byte[] source) {
+        writer.position(offset);
+        writer.put(source);
+    }
+
+    /**
+     * Nothing before a volatile store moves after it and nothing after a volatile load moves
+     * before it, so the pair keeps plain accesses on their side.
+     */
+    private void fullFence() {
+        fence = 0;
+        if (fence != 0) {
+            throw new IllegalStateException();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Save state snapshots crossing the socket in SAVESTATE frames, so a search can move a branch
+ * point from one game to another. A snapshot is opaque to the transport: the deflated encoding
+ * of the state, which only a game with the same version and mods can load.
+ *
+ * Snapshots a client uploads wait here until the game thread takes them with a
+ * {@code savestate import [statename]}; an upload under a name that's already waiting replaces it.
+ * Names are lower cased, like those of the commands. Snapshots over {@link #MAX_SNAPSHOT_BYTES}
+ * are refused, from a client or from a file.
+ */
+public class SaveStateTransfer {
+    public static final int MAX_SNAPSHOT_BYTES = 16 * 1024 * 1024;
+
+    private static final int MAX_UPLOADS = 64;
+
+    private static final ConcurrentHashMap<String, byte[]> uploads = new ConcurrentHashMap<>();
+
+    public static byte[] payload(String name, byte[] snapshot) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(2 + nameBytes.length + snapshot.length)
+                         .putShort((short) nameBytes.length).put(nameBytes).put(snapshot).array();
+    }
+
+    /**
+     * @return the name and the snapshot of a SAVESTATE payload
+     */
+    public static Upload parse(byte[] payload) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        if (buffer.remaining() < 2) {
+            throw new IOException("malformed SAVESTATE");
+        }
+        int nameLength = buffer.getShort() & 0xFFFF;
+        if (nameLength == 0 || buffer.remaining() < nameLength) {
+            throw new IOException("malformed SAVESTATE");
+        }
+
+        String name = new String(payload, 2, nameLength, StandardCharsets.UTF_8);
+        if (buffer.remaining() - nameLength > MAX_SNAPSHOT_BYTES) {
+            throw new IOException("save state " + name + " is larger than " + MAX_SNAPSHOT_BYTES + " bytes");
+        }
+        byte[] snapshot = new byte[payload.length - 2 - nameLength];
+        System.arraycopy(payload, 2 + nameLength, snapshot, 0, snapshot.length);
+        return new Upload(name, snapshot);
+    }
+
+    static boolean upload(Upload upload) {
+        String name = upload.name.toLowerCase(Locale.ROOT);
+        if (uploads.size() >= MAX_UPLOADS && !uploads.containsKey(name)) {
+            return false;
+        }
+        uploads.put(name, upload.snapshot);
+        return true;
+    }
+
+    /**
+     * @return null if no client uploaded a snapshot by that name
+     */
+    public static byte[] takeUpload(String name) {
+        return uploads.remove(name.toLowerCase(Locale.ROOT));
+    }
+
+    public static class Upload {
+        public final String name;
+        public final byte[] snapshot;
+
+        Upload(String name, byte[] snapshot) {
+            this.name = name;
+            this.snapshot = snapshot;
+        }
+    }
+}
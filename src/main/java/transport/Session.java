@@ -0,0 +1,19 @@
+package transport;
+
+/**
+ * What the server remembers about a framed client with {@link Protocol#FEATURE_RESUME} so that
+ * it can pick up where it left off after its connection drops. Kept for
+ * {@link SocketServer#SESSION_TIMEOUT_MILLIS} after the client detaches.
+ */
+class Session {
+    final long id;
+    Projection projection = null;
+
+    // The connection currently using the session, null while detached
+    ClientConnection client = null;
+    long detachedAt = 0;
+
+    Session(long id) {
+        this.id = id;
+    }
+}
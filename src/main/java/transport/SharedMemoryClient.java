@@ -0,0 +1,69 @@
+package transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+/**
+ * Agent side of {@link SharedMemoryServer}. Not thread safe: use one thread for
+ * {@link #send(String)} and one for receiving at most.
+ *
+ * Messages the game wrote before the client connected, for an agent that isn't there anymore,
+ * are skipped but for the last one, which the first receive returns.
+ */
+public class SharedMemoryClient implements Closeable {
+    private final SharedMemoryRing states;
+    private final SharedMemoryRing commands;
+    private byte[] latest = null;
+
+    private SharedMemoryClient(SharedMemoryRing states, SharedMemoryRing commands) {
+        this.states = states;
+        this.commands = commands;
+
+        byte[] message;
+        while ((message = states.poll()) != null) {
+            latest = message;
+        }
+    }
+
+    public static SharedMemoryClient connect(Path directory) throws IOException {
+        SharedMemoryRing states = SharedMemoryRing
+                .open(directory.resolve(SharedMemoryServer.STATES_FILE));
+        try {
+            return new SharedMemoryClient(states, SharedMemoryRing
+                    .open(directory.resolve(SharedMemoryServer.COMMANDS_FILE)));
+        } catch (IOException e) {
+            states.close();
+            throw e;
+        }
+    }
+
+    public void send(String command) throws InterruptedException {
+        commands.put(command.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Waits for the next message from the game.
+     */
+    public String receive() throws InterruptedException {
+        byte[] message = latest != null ? latest : states.take();
+        latest = null;
+        return new String(message, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the next message from the game, or null if there is none yet
+     */
+    public String poll() {
+        byte[] message = latest != null ? latest : states.poll();
+        latest = null;
+        return message == null ? null : new String(message, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        states.close();
+        commands.close();
+    }
+}
@@ -0,0 +1,242 @@
+package transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single producer, single consumer queue of messages in a memory mapped file, for two
+ * processes on the same host. Once both sides are running, passing a message is a copy into
+ * and out of shared memory and two cursor updates, with no system calls.
+ *
+ * File layout, all values in native byte order:
+ * <pre>
+ *   0     int magic, int version, int capacity
+ *   64    long write cursor, only advanced by the producer
+ *   128   long read cursor, only advanced by the consumer
+ *   256   capacity bytes of messages
+ * </pre>
+ * The cursors count bytes written and read since the ring was created and sit on separate cache
+ * lines so the two sides don't contend. A message is an int length followed by its bytes, padded
+ * to a multiple of 8. A length of -1 marks the unused tail of the data area when a message
+ * didn't fit before the end; the message then starts at the beginning instead.
+ *
+ * The producer writes a message, then publishes it with a release store of the write cursor;
+ * the consumer reads the write cursor with an acquire load before reading the message, and the
+ * same goes the other way for the read cursor, see {@link RingMemory}. Waiting sides spin, then
+ * yield, then park for twice as long each time up to a millisecond: nothing lets one process wake
+ * a thread of another without a system call per message, so a side that stays idle settles on
+ * a thousand cheap checks a second.
+ */
+public class SharedMemoryRing implements Closeable {
+    public static final int MAGIC = 0x434D5247;
+    public static final int VERSION = 1;
+
+    private static final int VERSION_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int WRITE_CURSOR_OFFSET = 64;
+    private static final int READ_CURSOR_OFFSET = 128;
+    private static final int DATA_OFFSET = 256;
+
+    private static final int LENGTH_SIZE = 4;
+    private static final int PADDING = -1;
+
+    private static final int SPIN_TRIES = 10_000;
+    private static final int YIELD_TRIES = 100;
+    private static final long MIN_PARK_NANOS = 50_000;
+    private static final long MAX_PARK_NANOS = 1_000_000;
+
+    private final FileChannel channel;
+    private final RingMemory memory;
+    private final int capacity;
+
+    // Each side only uses its own cursor and a cached copy of the other side's, which is reread
+    // only when it stands in the way
+    private long writeCursor;
+    private long readCursor;
+
+    private SharedMemoryRing(FileChannel channel, RingMemory memory) {
+        this.channel = channel;
+        this.memory = memory;
+        this.capacity = memory.getInt(CAPACITY_OFFSET);
+        this.writeCursor = memory.getLongAcquire(WRITE_CURSOR_OFFSET);
+        this.readCursor = memory.getLongAcquire(READ_CURSOR_OFFSET);
+    }
+
+    /**
+     * Creates the ring file, replacing any previous one. The other side should only open it
+     * after this returns.
+     */
+    public static SharedMemoryRing create(Path path, int capacity) throws IOException {
+        // A multiple of 16 keeps half the capacity aligned, see maxMessageSize()
+        capacity = (capacity + 15) & ~15;
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(0);
+            file.setLength(DATA_OFFSET + (long) capacity);
+        }
+
+        FileChannel channel = new RandomAccessFile(path.toFile(), "rw").getChannel();
+        RingMemory memory = new RingMemory(channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+        memory.putInt(VERSION_OFFSET, VERSION);
+        memory.putInt(CAPACITY_OFFSET, capacity);
+        memory.putIntRelease(0, MAGIC);
+        return new SharedMemoryRing(channel, memory);
+    }
+
+    public static SharedMemoryRing open(Path path) throws IOException {
+        FileChannel channel = new RandomAccessFile(path.toFile(), "rw").getChannel();
+        if (channel.size() < DATA_OFFSET) {
+            channel.close();
+            throw new IOException(path + " is too small to be a ring");
+        }
+
+        RingMemory memory = new RingMemory(channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+        if (memory.getIntAcquire(0) != MAGIC || memory.getInt(VERSION_OFFSET) != VERSION) {
+            channel.close();
+            throw new IOException(path + " is not a version " + VERSION + " ring");
+        }
+        return new SharedMemoryRing(channel, memory);
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * The largest message {@link #offer(byte[])} accepts. Messages are limited to half the ring
+     * so that one that has to wrap around always fits once the ring is empty.
+     */
+    public int maxMessageSize() {
+        return capacity / 2 - LENGTH_SIZE;
+    }
+
+    /**
+     * Producer side.
+     *
+     * @return false if the consumer hasn't made room for the message yet
+     */
+    public boolean offer(byte[] message) {
+        if (message.length > maxMessageSize()) {
+            throw new IllegalArgumentException("message of " + message.length + " bytes doesn't fit a ring of " + capacity);
+        }
+
+        int recordSize = align(LENGTH_SIZE + message.length);
+        int position = (int) (writeCursor % capacity);
+        int untilEnd = capacity - position;
+        int needed = recordSize <= untilEnd ? recordSize : untilEnd + recordSize;
+
+        if (writeCursor + needed - readCursor > capacity) {
+            readCursor = memory.getLongAcquire(READ_CURSOR_OFFSET);
+            if (writeCursor + needed - readCursor > capacity) {
+                return false;
+            }
+        }
+
+        if (recordSize > untilEnd) {
+            memory.putInt(DATA_OFFSET + position, PADDING);
+            position = 0;
+        }
+        memory.putInt(DATA_OFFSET + position, message.length);
+        memory.write(DATA_OFFSET + position + LENGTH_SIZE, message);
+
+        writeCursor += needed;
+        memory.putLongRelease(WRITE_CURSOR_OFFSET, writeCursor);
+        return true;
+    }
+
+    /**
+     * Producer side.
+     *
+     * @return the read cursor, which only moves while a consumer is reading
+     */
+    public long consumed() {
+        readCursor = memory.getLongAcquire(READ_CURSOR_OFFSET);
+        return readCursor;
+    }
+
+    /**
+     * Producer side.
+     *
+     * @return whether everything written so far has been read
+     */
+    public boolean isDrained() {
+        return consumed() == writeCursor;
+    }
+
+    /**
+     * Producer side, waits for room.
+     */
+    public void put(byte[] message) throws InterruptedException {
+        for (int attempt = 0; !offer(message); attempt++) {
+            idle(attempt);
+        }
+    }
+
+    /**
+     * Consumer side.
+     *
+     * @return the next message, or null if there is none yet
+     */
+    public byte[] poll() {
+        if (readCursor == writeCursor) {
+            writeCursor = memory.getLongAcquire(WRITE_CURSOR_OFFSET);
+            if (readCursor == writeCursor) {
+                return null;
+            }
+        }
+
+        int position = (int) (readCursor % capacity);
+        int length = memory.getInt(DATA_OFFSET + position);
+        if (length == PADDING) {
+            readCursor += capacity - position;
+            position = 0;
+            length = memory.getInt(DATA_OFFSET);
+        }
+
+        byte[] message = new byte[length];
+        memory.read(DATA_OFFSET + position + LENGTH_SIZE, message);
+
+        readCursor += align(LENGTH_SIZE + length);
+        memory.putLongRelease(READ_CURSOR_OFFSET, readCursor);
+        return message;
+    }
+
+    /**
+     * Consumer side, waits for a message.
+     */
+    public byte[] take() throws InterruptedException {
+        byte[] message;
+        for (int attempt = 0; (message = poll()) == null; attempt++) {
+            idle(attempt);
+        }
+        return message;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static void idle(int attempt) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+
+        if (attempt < SPIN_TRIES) {
+            return;
+        }
+        if (attempt < SPIN_TRIES + YIELD_TRIES) {
+            Thread.yield();
+        } else {
+            int parks = Math.min(attempt - SPIN_TRIES - YIELD_TRIES, 20);
+            LockSupport.parkNanos(Math.min(MIN_PARK_NANOS << parks, MAX_PARK_NANOS));
+        }
+    }
+
+    private static int align(int size) {
+        return (size + 7) & ~7;
+    }
+}
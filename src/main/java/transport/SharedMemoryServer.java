@@ -0,0 +1,121 @@
+package transport;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Game side of the SHARED_MEMORY communication method, for an agent on the same host. States go
+ * out through {@link #STATES_FILE} and commands come in through {@link #COMMANDS_FILE}, both
+ * {@link SharedMemoryRing}s in one directory. The rings are recreated on every start, so an agent
+ * should open them after the game is up; {@link SharedMemoryClient} is the agent side in Java.
+ *
+ * Only one agent can be attached. Messages wait in the ring until it reads them, so an agent that
+ * keeps up sees every state in order. The game never waits for it though: once the ring is full,
+ * or the agent hasn't read anything for {@link #STALL_MILLIS} with messages waiting, only the
+ * newest message is held back and later ones replace it, to be written once the agent reads
+ * again. An agent that attaches to a ring that already holds messages, such as one restarted
+ * while the game ran on, should skip to the last of them, as {@link SharedMemoryClient} does.
+ */
+public class SharedMemoryServer implements Runnable {
+    public static final String STATES_FILE = "states.ring";
+    public static final String COMMANDS_FILE = "commands.ring";
+
+    private static final int STATES_CAPACITY = 64 * 1024 * 1024;
+    private static final int COMMANDS_CAPACITY = 1024 * 1024;
+    static final long STALL_MILLIS = 1000;
+    private static final long RETRY_MILLIS = 5;
+
+    private final BlockingQueue<String> readQueue;
+    private final SharedMemoryRing states;
+    private final SharedMemoryRing commands;
+
+    // Write thread only
+    private byte[] held = null;
+    private long lastConsumed = 0;
+    private long lastConsumedAt = System.currentTimeMillis();
+
+    public SharedMemoryServer(Path directory, BlockingQueue<String> readQueue) throws IOException {
+        this.readQueue = readQueue;
+
+        Files.createDirectories(directory);
+        states = SharedMemoryRing.create(directory.resolve(STATES_FILE), STATES_CAPACITY);
+        commands = SharedMemoryRing.create(directory.resolve(COMMANDS_FILE), COMMANDS_CAPACITY);
+
+        System.err.println("shared memory rings ready in " + directory);
+    }
+
+    /**
+     * /dev/shm where it exists so the files never hit the disk, the temp directory otherwise.
+     */
+    public static Path defaultDirectory() {
+        Path shm = Paths.get("/dev/shm");
+        Path parent = Files.isDirectory(shm) ? shm : Paths.get(System.getProperty("java.io.tmpdir"));
+        return parent.resolve("communicationmod");
+    }
+
+    /**
+     * Reads commands into the read queue until interrupted.
+     */
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                readQueue.add(new String(commands.take(), StandardCharsets.UTF_8));
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Waits for the next message of the write queue, meanwhile retrying the one held back if
+     * there is one.
+     */
+    public String next(BlockingQueue<String> writeQueue) throws InterruptedException {
+        while (held != null) {
+            String message = writeQueue.poll(RETRY_MILLIS, TimeUnit.MILLISECONDS);
+            if (message != null) {
+                return message;
+            }
+            if (!isStalled() && states.offer(held)) {
+                held = null;
+            }
+        }
+        return writeQueue.take();
+    }
+
+    /**
+     * Never waits: a message the agent has no room for, or isn't reading, replaces the one held
+     * back.
+     */
+    public void send(String message) {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > states.maxMessageSize()) {
+            System.err.println("dropping a " + bytes.length + " byte message, the shared memory ring takes at most " + states
+                    .maxMessageSize());
+            return;
+        }
+
+        // Anything held is older than this message, which goes first in its place
+        held = null;
+        if (isStalled() || !states.offer(bytes)) {
+            held = bytes;
+        }
+    }
+
+    private boolean isStalled() {
+        long now = System.currentTimeMillis();
+        long consumed = states.consumed();
+        if (consumed != lastConsumed || states.isDrained()) {
+            lastConsumed = consumed;
+            lastConsumedAt = now;
+            return false;
+        }
+        return now - lastConsumedAt >= STALL_MILLIS;
+    }
+}
@@ -0,0 +1,89 @@
+package transport;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * An outbound message and the state it holds. Telling a state from a command error doesn't take
+ * parsing a state, so its tree is only built once a client's deltas, binary encoding or
+ * projection needs it.
+ */
+class Snapshot {
+    // Command errors are tiny, anything longer is a state and isn't worth parsing to find out
+    private static final int MAX_ERROR_LENGTH = 1024;
+
+    final long seq;
+    final String message;
+    private final boolean isState;
+    private JsonElement state;
+    private boolean parsed = false;
+
+    Snapshot(long seq, String message) {
+        this.seq = seq;
+        this.message = message;
+        if (!message.startsWith("{")) {
+            this.isState = false;
+        } else if (message.length() >= MAX_ERROR_LENGTH) {
+            this.isState = true;
+        } else {
+            JsonElement parsedState = state();
+            this.isState = parsedState != null && parsedState.isJsonObject() && !parsedState.getAsJsonObject().has("error");
+        }
+    }
+
+    Snapshot(long seq, JsonObject state) {
+        this.seq = seq;
+        this.message = state.toString();
+        this.isState = true;
+        this.state = state;
+        this.parsed = true;
+    }
+
+    private Snapshot(Snapshot snapshot) {
+        this.seq = snapshot.seq;
+        this.message = snapshot.message;
+        this.isState = snapshot.isState;
+    }
+
+    /**
+     * @return the same message without its tree, for keeping around where only the text counts
+     */
+    Snapshot withoutTree() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * @return the parsed message, or null if it isn't JSON
+     */
+    synchronized JsonElement state() {
+        if (!parsed) {
+            parsed = true;
+            try {
+                state = new JsonParser().parse(message);
+            } catch (JsonParseException e) {
+                state = null;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * @return the error field of a command error, or the whole message if it isn't JSON
+     */
+    String error() {
+        JsonElement state = state();
+        if (state != null && state.isJsonObject() && state.getAsJsonObject().has("error")) {
+            return state.getAsJsonObject().get("error").getAsString();
+        }
+        return message;
+    }
+
+    /**
+     * Command errors and other non-state messages are sent as is and never diffed.
+     */
+    boolean isState() {
+        return isState;
+    }
+}
@@ -0,0 +1,912 @@
+package transport;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Non-blocking socket server for the SOCKET communication method.
+ *
+ * Any number of clients may attach. Every client receives every outbound message and commands
+ * from every client are funneled into the same read queue. The selector thread only asks for
+ * write readiness while a client has data queued, so an idle server costs no CPU.
+ *
+ * Clients either speak the framed {@link Protocol} or the original writeUTF/readUTF one. A
+ * client that sends nothing for {@link #LEGACY_DETECT_MILLIS} after connecting is assumed to
+ * be a legacy client.
+ *
+ * Commands sent in BATCH frames go through a {@link CommandSequencer} and are answered with ACK
+ * frames once the game responds to them.
+ *
+ * Clients with {@link Protocol#FEATURE_RESUME} keep a session across reconnects and are sent
+ * what they missed from a {@link ReplayBuffer} of recent messages.
+ *
+ * While a client with {@link Protocol#FEATURE_TIMING} is attached, commands are stamped on
+ * arrival for the {@link StepTimer} and every state is followed by its {@link StepTiming}.
+ */
+public class SocketServer implements Runnable {
+    public static final long SESSION_TIMEOUT_MILLIS = 10 * 60 * 1000;
+    private static final int MAX_SESSIONS = 64;
+    private static final int REPLAY_MESSAGES = 256;
+    private static final long REPLAY_CHARS = 32 * 1024 * 1024;
+    private static final long LEGACY_DETECT_MILLIS = 250;
+    private static final int KEYFRAME_INTERVAL = 50;
+    private static final String EMPTY_PATCH = "{\"{\":{}}";
+    private static final long KEYFRAME = -1;
+    private static final long PLAIN = -2;
+
+    private final CommandSequencer sequencer;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+
+    private final Set<ClientConnection> clients = ConcurrentHashMap.newKeySet();
+    private final ConcurrentLinkedQueue<ClientConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+
+    private final BufferPool bufferPool = new BufferPool();
+    // Encoders aren't thread safe, broadcasts and the selector thread each get their own
+    private final FrameEncoder broadcastEncoder = new FrameEncoder(bufferPool);
+    private final FrameEncoder selectorEncoder = new FrameEncoder(bufferPool);
+    private final FrameEncoder saveStateEncoder = new FrameEncoder(bufferPool);
+
+    private long nextSeq = 1;
+    // New clients get the most recent state right away instead of waiting for the next change
+    private final ReplayBuffer replay = new ReplayBuffer(REPLAY_MESSAGES, REPLAY_CHARS);
+    // Only touched by the selector thread
+    private final HashMap<Long, Session> sessions = new HashMap<>();
+
+    public SocketServer(int port, BlockingQueue<String> readQueue) throws IOException {
+        this.sequencer = new CommandSequencer(readQueue);
+
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    @Override
+    public void run() {
+        while (selector.isOpen()) {
+            try {
+                selector.select(selectTimeout());
+                sendAcks(sequencer.expire(System.currentTimeMillis()), null, null, selectorEncoder);
+                registerPendingWrites();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        ClientConnection client = (ClientConnection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                read(client);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                write(client);
+                            }
+                        } catch (IOException e) {
+                            disconnect(client, e.getMessage());
+                        }
+                    }
+                }
+
+                decideIdleClients();
+            } catch (ClosedSelectorException | CancelledKeyException e) {
+                // close() was called from another thread while we were selecting
+                if (selector.isOpen()) {
+                    e.printStackTrace();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Queues a message for every connected client. Safe to call from any thread, though
+     * concurrent broadcasts must be serialized by the caller.
+     */
+    public void broadcast(String message) throws IOException {
+        Snapshot snapshot = new Snapshot(nextSeq++, message);
+        replay.add(snapshot);
+        StepTimer.Stamps stamps = snapshot.isState() ? StepTimer.claim(message) : null;
+        ArrayList<ClientConnection> timed = new ArrayList<>();
+
+        Frame legacy = null;
+        boolean legacyTooLarge = false;
+        SharedFrames sharedFrames = new SharedFrames();
+
+        List<CommandSequencer.Completion> completions = sequencer
+                .onMessage(snapshot.isState() ? null : snapshot.error());
+        // The ack already tells the client about its command's error or, if asked, its state
+        ClientConnection answered = null;
+        if (!completions.isEmpty()) {
+            CommandSequencer.Command command = completions.get(0).command;
+            if (!snapshot.isState() || command.wantState) {
+                answered = command.client;
+            }
+        }
+
+        for (ClientConnection client : clients) {
+            if (client == answered) {
+                continue;
+            }
+            if (client.mode == ClientConnection.Mode.FRAMED) {
+                if (!sendTo(client, snapshot, sharedFrames, broadcastEncoder)) {
+                    continue;
+                }
+                if (stamps != null && client.hasFeature(Protocol.FEATURE_TIMING)) {
+                    timed.add(client);
+                }
+            } else if (client.mode == ClientConnection.Mode.LEGACY && !legacyTooLarge) {
+                if (legacy == null) {
+                    try {
+                        legacy = FrameEncoder.legacy(message);
+                    } catch (UTFDataFormatException e) {
+                        System.err.println("message too large for legacy clients, use the framed protocol");
+                        legacyTooLarge = true;
+                        continue;
+                    }
+                }
+                client.enqueue(legacy.retain());
+            } else {
+                continue;
+            }
+            pendingWrites.add(client);
+        }
+
+        if (legacy != null) {
+            legacy.release();
+        }
+        sendAcks(completions, snapshot, sharedFrames, broadcastEncoder);
+        sharedFrames.release();
+
+        if (stamps != null) {
+            // A state answering a command that wanted it went out in the ack
+            if (answered != null && snapshot.isState() && answered.hasFeature(Protocol.FEATURE_TIMING)) {
+                timed.add(answered);
+            }
+            sendTimings(timed, snapshot.seq, stamps, broadcastEncoder);
+        }
+
+        selector.wakeup();
+    }
+
+    /**
+     * Queues a SAVESTATE frame for every client with {@link Protocol#FEATURE_SAVESTATE}. Called
+     * from the game thread, so the frame goes out ahead of the state answering the export.
+     *
+     * @return the number of clients it was queued for
+     */
+    public int sendSaveState(String name, byte[] snapshot) {
+        byte[] payload = SaveStateTransfer.payload(name, snapshot);
+        int sent = 0;
+        synchronized (saveStateEncoder) {
+            for (ClientConnection client : clients) {
+                if (client.mode != ClientConnection.Mode.FRAMED || !client.hasFeature(Protocol.FEATURE_SAVESTATE)) {
+                    continue;
+                }
+                synchronized (client) {
+                    enqueueFor(client, saveStateEncoder.encode(Protocol.FRAME_SAVESTATE, payload), saveStateEncoder);
+                }
+                pendingWrites.add(client);
+                sent++;
+            }
+        }
+
+        selector.wakeup();
+        return sent;
+    }
+
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    /**
+     * The port actually bound, useful when the server was started on port 0.
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public void close() throws IOException {
+        for (ClientConnection client : clients) {
+            client.close();
+        }
+        serverChannel.close();
+        selector.close();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+
+        ClientConnection client = new ClientConnection(channel);
+        client.key = channel.register(selector, SelectionKey.OP_READ, client);
+        clients.add(client);
+
+        System.err.println("client connected " + client + " (" + clients.size() + " total)");
+    }
+
+    private void read(ClientConnection client) throws IOException {
+        client.ensureInboundCapacity(1);
+        int bytesRead = client.channel.read(client.inbound);
+        if (bytesRead < 0) {
+            disconnect(client, "end of stream");
+            return;
+        }
+
+        ByteBuffer inbound = client.inbound;
+        inbound.flip();
+        try {
+            while (client.key.isValid() && processNext(client, inbound)) {
+            }
+        } finally {
+            inbound.compact();
+        }
+
+        client.ensureInboundCapacity(client.bytesNeeded - inbound.position());
+    }
+
+    /**
+     * Consumes one handshake step or message from the inbound buffer.
+     *
+     * @return false if more bytes are needed
+     */
+    private boolean processNext(ClientConnection client, ByteBuffer inbound) throws IOException {
+        client.bytesNeeded = 0;
+        switch (client.mode) {
+            case UNDECIDED:
+                if (inbound.remaining() < 2) {
+                    return false;
+                }
+                if (inbound.getShort(inbound.position()) != (short) 0xFFFF) {
+                    setMode(client, ClientConnection.Mode.LEGACY);
+                    return true;
+                }
+                if (inbound.remaining() < Protocol.MAGIC.length) {
+                    return false;
+                }
+                for (byte magicByte : Protocol.MAGIC) {
+                    if (inbound.get() != magicByte) {
+                        disconnect(client, "bad handshake");
+                        return false;
+                    }
+                }
+                client.mode = ClientConnection.Mode.AWAITING_HELLO;
+                return true;
+            case LEGACY:
+                if (inbound.remaining() < 2) {
+                    return false;
+                }
+                int messageLength = inbound.getShort(inbound.position()) & 0xFFFF;
+                if (inbound.remaining() < messageLength + 2) {
+                    client.bytesNeeded = messageLength + 2;
+                    return false;
+                }
+
+                byte[] message = new byte[messageLength + 2];
+                inbound.get(message);
+                queueCommand(client, new DataInputStream(new ByteArrayInputStream(message)).readUTF());
+                return true;
+            default:
+                if (inbound.remaining() < Protocol.HEADER_SIZE) {
+                    return false;
+                }
+                int frameLength = inbound.getInt(inbound.position());
+                if (frameLength < 0 || frameLength > Protocol.MAX_FRAME_SIZE) {
+                    disconnect(client, "invalid frame length " + frameLength);
+                    return false;
+                }
+                if (inbound.remaining() < frameLength + Protocol.HEADER_SIZE) {
+                    client.bytesNeeded = frameLength + Protocol.HEADER_SIZE;
+                    return false;
+                }
+
+                inbound.getInt();
+                byte type = inbound.get();
+                byte[] payload = new byte[frameLength];
+                inbound.get(payload);
+
+                handleFrame(client, new InboundFrame(type, payload));
+                return true;
+        }
+    }
+
+    private void handleFrame(ClientConnection client, InboundFrame frame) throws IOException {
+        if (client.mode == ClientConnection.Mode.AWAITING_HELLO) {
+            if (frame.type != Protocol.FRAME_HELLO || frame.payload.length < 5) {
+                reject(client, "expected HELLO");
+                return;
+            }
+
+            ByteBuffer hello = frame.buffer();
+            byte requestedVersion = hello.get();
+            int requestedFeatures = hello.getInt();
+            if (requestedVersion < 1) {
+                reject(client, "unsupported protocol version " + requestedVersion);
+                return;
+            }
+
+            client.version = Math.min(requestedVersion, Protocol.VERSION);
+            client.features = requestedFeatures & Protocol.SUPPORTED_FEATURES;
+            if (!client.hasFeature(Protocol.FEATURE_DELTA)) {
+                // Without seqs the client couldn't say where to resume from
+                client.features &= ~Protocol.FEATURE_RESUME;
+            }
+            if (client.hasFeature(Protocol.FEATURE_BINARY)) {
+                client.binaryEncoder = new BinaryStateEncoder();
+            }
+            if (client.hasFeature(Protocol.FEATURE_DEFLATE)) {
+                client.compressor = new Compression.Compressor();
+            }
+            if (client.hasFeature(Protocol.FEATURE_TIMING)) {
+                StepTimer.subscribe();
+            }
+
+            if (client.hasFeature(Protocol.FEATURE_RESUME)) {
+                long sessionId = hello.remaining() >= 16 ? hello.getLong() : 0;
+                long lastSeq = hello.remaining() >= 8 ? hello.getLong() : 0;
+                startSession(client, sessionId, lastSeq);
+                return;
+            }
+
+            byte[] ack = ByteBuffer.allocate(5).put((byte) client.version).putInt(client.features)
+                                   .array();
+            client.enqueue(FrameEncoder.wrap(Protocol.FRAME_HELLO, ack));
+            setMode(client, ClientConnection.Mode.FRAMED);
+            return;
+        }
+
+        switch (frame.type) {
+            case Protocol.FRAME_TEXT:
+                queueCommand(client, frame.text());
+                break;
+            case Protocol.FRAME_RESYNC:
+                synchronized (client) {
+                    client.sentSeq = 0;
+                    client.deltaBase = null;
+                }
+                sendLatest(client);
+                break;
+            case Protocol.FRAME_BATCH:
+                List<CommandSequencer.Command> batch = parseBatch(client, frame);
+                if (batch == null) {
+                    reject(client, "malformed BATCH");
+                    return;
+                }
+                sendAcks(sequencer.submit(batch), null, null, selectorEncoder);
+                break;
+            case Protocol.FRAME_SUBSCRIBE:
+                Projection projection = Projection.parse(frame.text());
+                synchronized (client) {
+                    client.projection = projection;
+                    client.sentSeq = 0;
+                    client.deltaBase = null;
+                }
+                System.err.println(client + " subscribed to " + (projection == null ? "the full state" : projection));
+                sendLatest(client);
+                break;
+            case Protocol.FRAME_SAVESTATE:
+                SaveStateTransfer.Upload upload;
+                try {
+                    upload = SaveStateTransfer.parse(frame.payload);
+                } catch (IOException e) {
+                    reject(client, e.getMessage());
+                    return;
+                }
+                if (!SaveStateTransfer.upload(upload)) {
+                    System.err.println("too many save states waiting to be imported, ignoring " + upload.name + " from " + client);
+                }
+                break;
+            default:
+                System.err.println("ignoring " + frame + " from " + client);
+        }
+    }
+
+    /**
+     * Attaches the client to the session it asks for, or to a new one if that session is unknown
+     * or expired, acks the HELLO and sends the client whatever it missed.
+     */
+    private void startSession(ClientConnection client, long sessionId, long lastSeq) throws IOException {
+        expireSessions();
+
+        Session session = sessions.get(sessionId);
+        boolean resumed = session != null;
+        if (resumed) {
+            if (session.client != null) {
+                // Most likely a half open connection the client already gave up on
+                disconnect(session.client, "session resumed by " + client);
+            }
+        } else {
+            do {
+                sessionId = ThreadLocalRandom.current().nextLong();
+            } while (sessionId == 0 || sessions.containsKey(sessionId));
+            session = new Session(sessionId);
+            sessions.put(sessionId, session);
+        }
+        session.client = client;
+        session.detachedAt = 0;
+        client.session = session;
+
+        byte[] ack = ByteBuffer.allocate(14).put((byte) client.version).putInt(client.features)
+                               .putLong(session.id).put((byte) (resumed ? 1 : 0)).array();
+        client.enqueue(FrameEncoder.wrap(Protocol.FRAME_HELLO, ack));
+
+        if (!resumed) {
+            setMode(client, ClientConnection.Mode.FRAMED);
+            return;
+        }
+
+        // Switching mode and reading the buffer under the lock means a concurrent broadcast
+        // either lands in what we replay or is sent to the client after it
+        synchronized (client) {
+            client.mode = ClientConnection.Mode.FRAMED;
+            client.projection = session.projection;
+
+            List<Snapshot> missed = replay.after(lastSeq);
+            Snapshot base = replay.stateAtOrBefore(lastSeq);
+            if (missed != null && base != null) {
+                client.deltaBase = new SharedFrames().project(base, client.projection).state();
+                client.deltaSeq = base.seq;
+                client.sentSeq = lastSeq;
+            }
+
+            if (missed == null) {
+                System.err.println(client + " resumed session " + session.id + " too late to replay from " + lastSeq);
+            } else {
+                System.err.println(client + " resumed session " + session.id + ", replaying " + missed
+                        .size() + " messages");
+                for (Snapshot snapshot : missed) {
+                    SharedFrames shared = new SharedFrames();
+                    sendTo(client, snapshot, shared, selectorEncoder);
+                    shared.release();
+                }
+            }
+        }
+
+        sendLatest(client);
+    }
+
+    private void expireSessions() {
+        long now = System.currentTimeMillis();
+        sessions.values().removeIf(session -> session.client == null && now - session
+                .detachedAt >= SESSION_TIMEOUT_MILLIS);
+
+        while (sessions.size() >= MAX_SESSIONS) {
+            Session oldest = null;
+            for (Session session : sessions.values()) {
+                if (session.client == null && (oldest == null || session.detachedAt < oldest.detachedAt)) {
+                    oldest = session;
+                }
+            }
+            if (oldest == null) {
+                break;
+            }
+            sessions.remove(oldest.id);
+        }
+    }
+
+    private void setMode(ClientConnection client, ClientConnection.Mode mode) throws IOException {
+        client.mode = mode;
+        sendLatest(client);
+    }
+
+    private void sendLatest(ClientConnection client) throws IOException {
+        Snapshot snapshot = replay.latest();
+        if (snapshot != null) {
+            if (client.mode == ClientConnection.Mode.LEGACY) {
+                try {
+                    client.enqueue(FrameEncoder.legacy(snapshot.message));
+                } catch (UTFDataFormatException e) {
+                    System.err.println("latest message too large for legacy client " + client);
+                }
+            } else {
+                SharedFrames shared = new SharedFrames();
+                sendTo(client, snapshot, shared, selectorEncoder);
+                shared.release();
+            }
+        }
+
+        write(client);
+    }
+
+    /**
+     * Encodes and queues the snapshot for a framed client. Encoding and queueing happen under
+     * the client's lock because delta bases, binary string tables and the compression stream
+     * all depend on the client reading frames in the order they were encoded.
+     *
+     * @return false if the client already had the snapshot
+     */
+    private static boolean sendTo(ClientConnection client, Snapshot snapshot, SharedFrames shared, FrameEncoder encoder) {
+        synchronized (client) {
+            if (snapshot.seq <= client.sentSeq) {
+                return false;
+            }
+
+            Projection projection = snapshot.isState() ? client.projection : null;
+            Frame frame = encodeFor(client, shared.project(snapshot, projection), shared
+                    .frames(projection), encoder);
+            if (frame == null) {
+                return false;
+            }
+
+            client.sentSeq = snapshot.seq;
+            enqueueFor(client, frame, encoder);
+            return true;
+        }
+    }
+
+    /**
+     * Compresses the frame if the client negotiated it and queues it. Must be called holding the
+     * client's lock.
+     */
+    private static void enqueueFor(ClientConnection client, Frame frame, FrameEncoder encoder) {
+        if (client.compressor != null && frame.size() >= Compression.MIN_COMPRESSED_SIZE) {
+            byte[] compressed = client.compressor.compress(frame.payload());
+            byte type = (byte) (frame.type() | Protocol.FLAG_COMPRESSED);
+            frame.release();
+            frame = encoder.encode(type, compressed);
+        }
+
+        client.enqueue(frame);
+    }
+
+    /**
+     * Encodes the snapshot the way a framed client negotiated. With delta mode, states are sent
+     * relative to the last state the client was sent, falling back to a keyframe when the client
+     * has no base, is due for one, or the patch wouldn't be smaller. Must be called holding the
+     * client's lock.
+     *
+     * @param shared text frames already encoded for this snapshot, keyed by base seq, with -1
+     *               for the keyframe and -2 for a plain TEXT frame; holds one reference to each.
+     *               Binary clients have their own string tables so their frames are never shared
+     * @return a frame the caller owns one reference to, or null if the client already has it
+     */
+    private static Frame encodeFor(ClientConnection client, Snapshot snapshot, HashMap<Long, Frame> shared, FrameEncoder encoder) {
+        BinaryStateEncoder binary = client.binaryEncoder;
+
+        // A message that merely looked like a state, too malformed to parse, goes out as text
+        if (!client.hasFeature(Protocol.FEATURE_DELTA) || !snapshot.isState() || snapshot.state() == null) {
+            if (binary != null && snapshot.state() != null) {
+                return encoder.encode(Protocol.FRAME_BINARY, binary.encode(snapshot.state()));
+            }
+
+            Frame frame = shared.get(PLAIN);
+            if (frame == null) {
+                frame = encoder.encodeText(Protocol.FRAME_TEXT, snapshot.message);
+                shared.put(PLAIN, frame);
+            }
+            return frame.retain();
+        }
+
+        if (client.deltaBase != null && client.deltaSeq >= snapshot.seq) {
+            return null;
+        }
+
+        long baseSeq = KEYFRAME;
+        if (client.deltaBase != null && client.deltasSinceKeyframe < KEYFRAME_INTERVAL) {
+            baseSeq = client.deltaSeq;
+        }
+
+        Frame frame = binary == null ? shared.get(baseSeq) : null;
+        if (frame == null && baseSeq != KEYFRAME) {
+            JsonObject patch = StateDiff.diff(client.deltaBase, snapshot.state());
+            String patchText = patch == null ? EMPTY_PATCH : patch.toString();
+            if (patchText.length() < snapshot.message.length()) {
+                ByteBuffer prefix = ByteBuffer.allocate(16).putLong(snapshot.seq)
+                                              .putLong(baseSeq);
+                prefix.flip();
+                if (binary != null) {
+                    JsonElement body = patch == null ? new JsonParser()
+                            .parse(EMPTY_PATCH) : patch;
+                    frame = encoder.encode(Protocol.FRAME_DELTA, prefix, binary.encode(body));
+                } else {
+                    frame = encoder.encodeText(Protocol.FRAME_DELTA, prefix, patchText);
+                }
+            } else {
+                baseSeq = KEYFRAME;
+                frame = binary == null ? shared.get(baseSeq) : null;
+            }
+        }
+        if (frame == null) {
+            ByteBuffer prefix = ByteBuffer.allocate(8).putLong(snapshot.seq);
+            prefix.flip();
+            if (binary != null) {
+                frame = encoder.encode(Protocol.FRAME_STATE, prefix, binary
+                        .encode(snapshot.state()));
+            } else {
+                frame = encoder.encodeText(Protocol.FRAME_STATE, prefix, snapshot.message);
+            }
+        }
+
+        client.deltaBase = snapshot.state();
+        client.deltaSeq = snapshot.seq;
+        client.deltasSinceKeyframe = baseSeq == KEYFRAME ? 0 : client.deltasSinceKeyframe + 1;
+
+        if (binary != null) {
+            return frame;
+        }
+        shared.putIfAbsent(baseSeq, frame);
+        return frame.retain();
+    }
+
+    /**
+     * @return null if the frame doesn't hold as many commands as it says
+     */
+    private static List<CommandSequencer.Command> parseBatch(ClientConnection client, InboundFrame frame) {
+        ByteBuffer payload = frame.buffer();
+        if (payload.remaining() < 5) {
+            return null;
+        }
+
+        long receivedAt = System.nanoTime();
+        boolean wantState = (payload.get() & Protocol.BATCH_ACK_WITH_STATE) != 0;
+        int count = payload.getInt();
+        Object batch = new Object();
+        ArrayList<CommandSequencer.Command> commands = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            if (payload.remaining() < 12) {
+                return null;
+            }
+            long id = payload.getLong();
+            int length = payload.getInt();
+            if (length < 0 || length > payload.remaining()) {
+                return null;
+            }
+            String text = new String(payload.array(), payload.arrayOffset() + payload
+                    .position(), length, StandardCharsets.UTF_8);
+            payload.position(payload.position() + length);
+            commands.add(new CommandSequencer.Command(client, id, text, wantState, batch, receivedAt));
+        }
+        return commands;
+    }
+
+    /**
+     * Queues an ACK for each completed command, after the message that completed it.
+     *
+     * @param snapshot the message that completed the commands, or null if they didn't get one
+     */
+    private void sendAcks(List<CommandSequencer.Completion> completions, Snapshot snapshot, SharedFrames shared, FrameEncoder encoder) {
+        if (completions.isEmpty()) {
+            return;
+        }
+
+        for (CommandSequencer.Completion completion : completions) {
+            ClientConnection client = completion.command.client;
+            byte[] message = completion.message == null ? new byte[0] : completion.message
+                    .getBytes(StandardCharsets.UTF_8);
+
+            synchronized (client) {
+                byte[] state = new byte[0];
+                ByteBuffer seq = ByteBuffer.allocate(0);
+                if (completion.status == Protocol.ACK_OK && completion.command.wantState && snapshot != null) {
+                    Snapshot projected = shared.project(snapshot, client.projection);
+                    if (client.binaryEncoder != null) {
+                        // Encoded in turn with the client's frames, so its string tables stay in step
+                        state = client.binaryEncoder.encode(projected.state() != null ? projected
+                                .state() : new JsonPrimitive(projected.message));
+                    } else {
+                        state = projected.message.getBytes(StandardCharsets.UTF_8);
+                    }
+                    client.sentSeq = Math.max(client.sentSeq, snapshot.seq);
+                    if (client.hasFeature(Protocol.FEATURE_DELTA)) {
+                        // The state in the ack is the client's new delta base, like a keyframe
+                        seq = ByteBuffer.allocate(8).putLong(snapshot.seq);
+                        client.deltaBase = projected.state();
+                        client.deltaSeq = snapshot.seq;
+                        client.deltasSinceKeyframe = 0;
+                    }
+                }
+
+                byte[] ack = ByteBuffer.allocate(13 + message.length + seq.capacity() + state.length)
+                                       .putLong(completion.command.id).put(completion.status)
+                                       .putInt(message.length).put(message).put(seq.array())
+                                       .put(state).array();
+                enqueueFor(client, encoder.encode(Protocol.FRAME_ACK, ack), encoder);
+            }
+            pendingWrites.add(client);
+        }
+
+        selector.wakeup();
+    }
+
+    /**
+     * Runs on the selector thread, which must never wait for the game, so a command the
+     * sequencer can't take right now, with the read queue full or a batch running, is answered
+     * with an error like one the game would send instead.
+     */
+    private void queueCommand(ClientConnection client, String command) throws IOException {
+        String reason = sequencer.submitPlain(command, System.nanoTime());
+        if (reason == null) {
+            return;
+        }
+
+        JsonObject error = new JsonObject();
+        error.addProperty("error", reason);
+        error.addProperty("ready_for_command", true);
+        if (client.mode == ClientConnection.Mode.LEGACY) {
+            client.enqueue(FrameEncoder.legacy(error.toString()));
+        } else {
+            client.enqueue(FrameEncoder.wrap(Protocol.FRAME_TEXT, error.toString().getBytes(StandardCharsets.UTF_8)));
+        }
+        write(client);
+    }
+
+    /**
+     * Queues a TIMING frame for each client, after the state it describes.
+     */
+    private void sendTimings(List<ClientConnection> timed, long seq, StepTimer.Stamps stamps, FrameEncoder encoder) {
+        for (ClientConnection client : timed) {
+            synchronized (client) {
+                byte[] timing = stamps.toTiming(seq, System.nanoTime()).toBytes();
+                enqueueFor(client, encoder.encode(Protocol.FRAME_TIMING, timing), encoder);
+            }
+            pendingWrites.add(client);
+        }
+    }
+
+    private void reject(ClientConnection client, String reason) throws IOException {
+        client.enqueue(FrameEncoder
+                .wrap(Protocol.FRAME_ERROR, reason.getBytes(StandardCharsets.UTF_8)));
+        client.flush();
+        disconnect(client, reason);
+    }
+
+    private long selectTimeout() {
+        long timeout = 0;
+        for (ClientConnection client : clients) {
+            if (client.mode == ClientConnection.Mode.UNDECIDED) {
+                timeout = LEGACY_DETECT_MILLIS;
+                break;
+            }
+        }
+
+        long deadline = sequencer.deadline();
+        if (deadline > 0) {
+            long untilDeadline = Math.max(1, deadline - System.currentTimeMillis());
+            timeout = timeout == 0 ? untilDeadline : Math.min(timeout, untilDeadline);
+        }
+        return timeout;
+    }
+
+    private void decideIdleClients() {
+        long now = System.currentTimeMillis();
+        for (ClientConnection client : clients) {
+            if (client.mode == ClientConnection.Mode.UNDECIDED && now - client.connectedAt >= LEGACY_DETECT_MILLIS) {
+                try {
+                    setMode(client, ClientConnection.Mode.LEGACY);
+                } catch (IOException e) {
+                    disconnect(client, e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void write(ClientConnection client) throws IOException {
+        if (!client.key.isValid()) {
+            return;
+        }
+        if (disconnectIfOverflowed(client)) {
+            return;
+        }
+
+        if (client.flush()) {
+            client.key.interestOps(SelectionKey.OP_READ);
+        } else {
+            client.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void registerPendingWrites() {
+        ClientConnection client;
+        while ((client = pendingWrites.poll()) != null) {
+            if (!disconnectIfOverflowed(client) && client.key.isValid() && client.hasPendingWrites()) {
+                client.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    /**
+     * A client that stopped reading would otherwise hold every frame broadcast since.
+     */
+    private boolean disconnectIfOverflowed(ClientConnection client) {
+        if (!client.isOverflowed()) {
+            return false;
+        }
+        if (clients.contains(client)) {
+            disconnect(client, "more than " + ClientConnection.MAX_QUEUED_BYTES / (1024 * 1024) + "MB of messages behind");
+        }
+        return true;
+    }
+
+    private void disconnect(ClientConnection client, String reason) {
+        String name = client.toString();
+        if (clients.remove(client) && client.hasFeature(Protocol.FEATURE_TIMING)) {
+            StepTimer.unsubscribe();
+        }
+        sequencer.drop(client);
+
+        Session session = client.session;
+        if (session != null && session.client == client) {
+            synchronized (client) {
+                session.projection = client.projection;
+            }
+            session.client = null;
+            session.detachedAt = System.currentTimeMillis();
+        }
+        try {
+            client.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        System.err.println("client disconnected " + name + ": " + reason);
+    }
+
+    /**
+     * Work done for one outbound message that clients can share: each projection is built once,
+     * and text frames are encoded once per distinct projection and delta base.
+     */
+    private static class SharedFrames {
+        private final HashMap<String, Snapshot> projected = new HashMap<>();
+        private final HashMap<String, HashMap<Long, Frame>> frames = new HashMap<>();
+
+        Snapshot project(Snapshot snapshot, Projection projection) {
+            if (projection == null || snapshot.state() == null || !snapshot.state().isJsonObject()) {
+                return snapshot;
+            }
+            return projected.computeIfAbsent(projection.key, key -> new Snapshot(snapshot.seq, projection
+                    .apply(snapshot.state().getAsJsonObject())));
+        }
+
+        HashMap<Long, Frame> frames(Projection projection) {
+            return frames.computeIfAbsent(projection == null ? "" : projection.key, key -> new HashMap<>());
+        }
+
+        void release() {
+            for (HashMap<Long, Frame> byBase : frames.values()) {
+                for (Frame frame : byBase.values()) {
+                    frame.release();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package transport;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.util.Map;
+
+/**
+ * Structural diff between two JSON documents, used for delta encoded states.
+ *
+ * A patch is always an object in one of three shapes:
+ * <pre>
+ *   {"=": value}                               replace the node with value
+ *   {"{": {key: patch, ...}, "-": [key, ...]}  edit the named members, remove the listed ones
+ *   {"[": {index: patch, ...}, "#": length}    edit the listed elements, then resize the array
+ * </pre>
+ * Elements past the old end of an array are always given as {"=": value}.
+ */
+public class StateDiff {
+    private static final String REPLACE = "=";
+    private static final String OBJECT = "{";
+    private static final String REMOVE = "-";
+    private static final String ARRAY = "[";
+    private static final String LENGTH = "#";
+
+    /**
+     * @return the patch turning {@code from} into {@code to}, or null if they are equal
+     */
+    public static JsonObject diff(JsonElement from, JsonElement to) {
+        if (from.isJsonObject() && to.isJsonObject()) {
+            return diffObjects(from.getAsJsonObject(), to.getAsJsonObject());
+        } else if (from.isJsonArray() && to.isJsonArray()) {
+            return diffArrays(from.getAsJsonArray(), to.getAsJsonArray());
+        } else if (from.equals(to)) {
+            return null;
+        }
+
+        return replace(to);
+    }
+
+    /**
+     * Applies a patch produced by {@link #diff}. Objects and arrays in {@code base} are edited in
+     * place; the returned element has to be used in case the root itself was replaced.
+     */
+    public static JsonElement apply(JsonElement base, JsonObject patch) {
+        if (patch.has(REPLACE)) {
+            return patch.get(REPLACE);
+        }
+
+        if (patch.has(OBJECT)) {
+            JsonObject object = base.getAsJsonObject();
+            for (Map.Entry<String, JsonElement> entry : patch.getAsJsonObject(OBJECT).entrySet()) {
+                JsonElement member = object.get(entry.getKey());
+                JsonObject memberPatch = entry.getValue().getAsJsonObject();
+                object.add(entry.getKey(), member == null ? memberPatch
+                        .get(REPLACE) : apply(member, memberPatch));
+            }
+            if (patch.has(REMOVE)) {
+                for (JsonElement removed : patch.getAsJsonArray(REMOVE)) {
+                    object.remove(removed.getAsString());
+                }
+            }
+            return object;
+        }
+
+        JsonArray array = base.getAsJsonArray();
+        int length = patch.get(LENGTH).getAsInt();
+        while (array.size() > length) {
+            array.remove(array.size() - 1);
+        }
+
+        JsonObject elements = patch.getAsJsonObject(ARRAY);
+        for (int i = 0; i < length; i++) {
+            JsonElement elementPatch = elements.get(Integer.toString(i));
+            if (i >= array.size()) {
+                array.add(elementPatch.getAsJsonObject().get(REPLACE));
+            } else if (elementPatch != null) {
+                array.set(i, apply(array.get(i), elementPatch.getAsJsonObject()));
+            }
+        }
+        return array;
+    }
+
+    private static JsonObject diffObjects(JsonObject from, JsonObject to) {
+        JsonObject members = new JsonObject();
+        JsonArray removed = new JsonArray();
+
+        for (Map.Entry<String, JsonElement> entry : to.entrySet()) {
+            JsonElement previous = from.get(entry.getKey());
+            JsonObject memberPatch = previous == null ? replace(entry.getValue()) : diff(previous, entry
+                    .getValue());
+            if (memberPatch != null) {
+                members.add(entry.getKey(), memberPatch);
+            }
+        }
+
+        for (Map.Entry<String, JsonElement> entry : from.entrySet()) {
+            if (!to.has(entry.getKey())) {
+                removed.add(new JsonPrimitive(entry.getKey()));
+            }
+        }
+
+        if (members.entrySet().isEmpty() && removed.size() == 0) {
+            return null;
+        }
+
+        JsonObject patch = new JsonObject();
+        patch.add(OBJECT, members);
+        if (removed.size() > 0) {
+            patch.add(REMOVE, removed);
+        }
+        return patch;
+    }
+
+    private static JsonObject diffArrays(JsonArray from, JsonArray to) {
+        JsonObject elements = new JsonObject();
+
+        for (int i = 0; i < to.size(); i++) {
+            JsonObject elementPatch = i < from.size() ? diff(from.get(i), to.get(i)) : replace(to
+                    .get(i));
+            if (elementPatch != null) {
+                elements.add(Integer.toString(i), elementPatch);
+            }
+        }
+
+        if (elements.entrySet().isEmpty() && from.size() == to.size()) {
+            return null;
+        }
+
+        JsonObject patch = new JsonObject();
+        patch.add(ARRAY, elements);
+        patch.addProperty(LENGTH, to.size());
+        return patch;
+    }
+
+    private static JsonObject replace(JsonElement value) {
+        JsonObject patch = new JsonObject();
+        patch.add(REPLACE, value);
+        return patch;
+    }
+}
@@ -0,0 +1,115 @@
+package transport;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serves the latest game state at /state for dashboards and other pollers that shouldn't have to
+ * become a transport client.
+ *
+ * The state is never asked of the game: the transports' write threads {@link #publish(String)}
+ * every message they take from the write queue, and the endpoint keeps the last one that is a
+ * state, encoded once. Every response carries an ETag. A request whose If-None-Match matches it
+ * gets a 304, or with {@code ?wait=seconds} is held until the state changes or the time is up,
+ * so an up to date poller costs a string comparison per request.
+ */
+public class StateEndpoint {
+    public static final String PATH = "/state";
+    static final int MAX_WAIT_SECONDS = 60;
+
+    // Command errors are tiny, anything longer is a state and isn't worth parsing to find out
+    private static final int MAX_ERROR_LENGTH = 1024;
+
+    // A lock rather than a monitor, so long-polls parked on Java 21's virtual threads don't pin
+    // their carriers
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private String state = null;
+    private byte[] body = null;
+    private String etag = null;
+    private long version = 0;
+
+    public StateEndpoint(LocalHttpServer server) {
+        server.route(PATH, this::handle);
+    }
+
+    /**
+     * Called with every outbound message; anything that isn't a new state is ignored.
+     */
+    public void publish(String message) {
+        if (message.length() < MAX_ERROR_LENGTH && isError(message)) {
+            return;
+        }
+
+        lock.lock();
+        try {
+            if (message.equals(state)) {
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        byte[] encoded = message.getBytes(StandardCharsets.UTF_8);
+        lock.lock();
+        try {
+            version++;
+            state = message;
+            body = encoded;
+            etag = "\"" + version + "-" + Integer.toHexString(message.hashCode()) + "\"";
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private LocalHttpServer.Response handle(LocalHttpServer.Request request) throws InterruptedException {
+        String known = request.headers.get("if-none-match");
+        long waitMillis = 0;
+        if (request.query.containsKey("wait")) {
+            try {
+                waitMillis = Math.min(Integer.parseInt(request.query.get("wait")), MAX_WAIT_SECONDS) * 1000L;
+            } catch (NumberFormatException e) {
+                return LocalHttpServer.Response.text(400, "wait takes a number of seconds");
+            }
+        }
+
+        byte[] currentBody;
+        String currentEtag;
+        lock.lock();
+        try {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(waitMillis);
+            while (remaining > 0 && (etag == null || etag.equals(known))) {
+                remaining = changed.awaitNanos(remaining);
+            }
+            currentBody = body;
+            currentEtag = etag;
+        } finally {
+            lock.unlock();
+        }
+
+        if (currentEtag == null) {
+            return LocalHttpServer.Response.text(503, "no state yet");
+        }
+        if (currentEtag.equals(known)) {
+            return new LocalHttpServer.Response(304, null, new byte[0]).header("ETag", currentEtag);
+        }
+        return new LocalHttpServer.Response(200, "application/json; charset=utf-8", currentBody)
+                .header("ETag", currentEtag);
+    }
+
+    private static boolean isError(String message) {
+        try {
+            JsonElement parsed = new JsonParser().parse(message);
+            return !parsed.isJsonObject() || parsed.getAsJsonObject().has("error");
+        } catch (JsonParseException e) {
+            return true;
+        }
+    }
+}
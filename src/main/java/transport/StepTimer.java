@@ -0,0 +1,224 @@
+package transport;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Collects the stamps of a {@link StepTiming} from the threads a step passes through: the
+ * transport receiving the command, the game thread executing it and serializing the next state,
+ * and the write thread broadcasting that state.
+ *
+ * Commands and states are matched up by their text as they flow through CommunicationMod's
+ * queues, which hand the same strings on in order. Nothing is recorded unless a client with
+ * {@link Protocol#FEATURE_TIMING} is connected, so the game thread hooks cost a volatile read
+ * otherwise.
+ */
+public final class StepTimer {
+    // Commands and states that never show up on the other end, like those of other transports,
+    // mustn't pile up
+    private static final int MAX_PENDING = 64;
+
+    private static int subscribers = 0;
+    private static volatile boolean enabled = false;
+
+    private static final ArrayDeque<Received> received = new ArrayDeque<>();
+    private static final ArrayDeque<Stamps> produced = new ArrayDeque<>();
+    // The step the game thread is on, from executing its command to producing its state
+    private static Stamps current = null;
+
+    private StepTimer() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    static synchronized void subscribe() {
+        enabled = ++subscribers > 0;
+    }
+
+    static synchronized void unsubscribe() {
+        enabled = --subscribers > 0;
+        if (!enabled) {
+            received.clear();
+            produced.clear();
+            current = null;
+        }
+    }
+
+    /**
+     * Called by the transport right before queueing a command for the game.
+     *
+     * @param nanos when the command was read, by {@link System#nanoTime()}
+     */
+    static void commandReceived(String command, long nanos) {
+        if (!enabled) {
+            return;
+        }
+
+        long millis = System.currentTimeMillis() - (System.nanoTime() - nanos) / 1_000_000;
+        synchronized (StepTimer.class) {
+            if (received.size() >= MAX_PENDING) {
+                received.poll();
+            }
+            received.add(new Received(command, nanos, millis));
+        }
+    }
+
+    /**
+     * Takes back a {@link #commandReceived} whose command didn't fit in the read queue.
+     */
+    static void commandRejected(String command) {
+        if (!enabled) {
+            return;
+        }
+
+        synchronized (StepTimer.class) {
+            Received last = received.peekLast();
+            if (last != null && last.command == command) {
+                received.pollLast();
+            }
+        }
+    }
+
+    public static void executeStarted(String command) {
+        if (!enabled) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        synchronized (StepTimer.class) {
+            current = new Stamps(System.currentTimeMillis());
+            current.dequeued = now;
+
+            Iterator<Received> pending = received.iterator();
+            while (pending.hasNext()) {
+                Received next = pending.next();
+                if (next.command.equals(command)) {
+                    // Anything queued before it was consumed without being executed
+                    while (received.peek() != next) {
+                        received.poll();
+                    }
+                    received.poll();
+                    current.received = next.nanos;
+                    current.originMillis = next.millis;
+                    break;
+                }
+            }
+        }
+    }
+
+    public static void executeFinished() {
+        if (!enabled) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        synchronized (StepTimer.class) {
+            if (current != null) {
+                current.executed = now;
+            }
+        }
+    }
+
+    public static void stateStarted() {
+        if (!enabled) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        synchronized (StepTimer.class) {
+            if (current == null) {
+                current = new Stamps(System.currentTimeMillis());
+            }
+            current.stateStarted = now;
+        }
+    }
+
+    public static void stateProduced(String state) {
+        if (!enabled) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        synchronized (StepTimer.class) {
+            if (current == null || current.stateStarted < 0) {
+                return;
+            }
+            current.stateProduced = now;
+            current.state = state;
+
+            if (produced.size() >= MAX_PENDING) {
+                produced.poll();
+            }
+            produced.add(current);
+            current = null;
+        }
+    }
+
+    /**
+     * Called by the transport when it takes a message from the write queue.
+     *
+     * @return the stamps of the step that produced the message, or null if it isn't a state
+     * recorded here
+     */
+    static Stamps claim(String message) {
+        if (!enabled) {
+            return null;
+        }
+
+        long now = System.nanoTime();
+        synchronized (StepTimer.class) {
+            Iterator<Stamps> pending = produced.iterator();
+            while (pending.hasNext()) {
+                Stamps next = pending.next();
+                if (next.state == message || next.state.equals(message)) {
+                    while (produced.peek() != next) {
+                        produced.poll();
+                    }
+                    produced.poll();
+                    next.state = null;
+                    next.broadcast = now;
+                    return next;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static class Received {
+        final String command;
+        final long nanos;
+        final long millis;
+
+        Received(String command, long nanos, long millis) {
+            this.command = command;
+            this.nanos = nanos;
+            this.millis = millis;
+        }
+    }
+
+    static class Stamps {
+        String state;
+        long originMillis;
+        long received = -1;
+        long dequeued = -1;
+        long executed = -1;
+        long stateStarted = -1;
+        long stateProduced = -1;
+        long broadcast = -1;
+
+        Stamps(long originMillis) {
+            this.originMillis = originMillis;
+        }
+
+        StepTiming toTiming(long seq, long written) {
+            long origin = received >= 0 ? received : dequeued >= 0 ? dequeued : stateStarted;
+            return new StepTiming(seq, originMillis, since(origin, received), since(origin, dequeued), since(origin, executed), since(origin, stateStarted), since(origin, stateProduced), since(origin, broadcast), since(origin, written));
+        }
+
+        private static long since(long origin, long stamp) {
+            return stamp < 0 ? -1 : stamp - origin;
+        }
+    }
+}
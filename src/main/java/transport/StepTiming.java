@@ -0,0 +1,79 @@
+package transport;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Where the time between a command reaching the game and the resulting state leaving it went,
+ * as sent in TIMING frames to clients with {@link Protocol#FEATURE_TIMING}.
+ *
+ * Stamps are nanoseconds since the first stamp taken, which is when the command was received or,
+ * for a state that didn't follow a command, when serializing it started; -1 means the stamp
+ * wasn't taken. {@link #originMillis} is the wall clock time of that first stamp.
+ */
+public class StepTiming {
+    static final int SIZE = 72;
+
+    public final long seq;
+    public final long originMillis;
+
+    // The server read the command; for a BATCH, when the whole batch arrived
+    public final long received;
+    // CommandExecutor started on the command, after any time spent in the read queue
+    public final long dequeued;
+    public final long executed;
+    // GameStateConverter started on the state, once the game's action queue settled
+    public final long stateStarted;
+    public final long stateProduced;
+    // The transport took the state from the write queue
+    public final long broadcast;
+    // The frame was queued on this client's connection
+    public final long written;
+
+    public StepTiming(long seq, long originMillis, long received, long dequeued, long executed, long stateStarted, long stateProduced, long broadcast, long written) {
+        this.seq = seq;
+        this.originMillis = originMillis;
+        this.received = received;
+        this.dequeued = dequeued;
+        this.executed = executed;
+        this.stateStarted = stateStarted;
+        this.stateProduced = stateProduced;
+        this.broadcast = broadcast;
+        this.written = written;
+    }
+
+    public static StepTiming read(ByteBuffer payload) {
+        return new StepTiming(payload.getLong(), payload.getLong(), payload.getLong(), payload
+                .getLong(), payload.getLong(), payload.getLong(), payload.getLong(), payload
+                .getLong(), payload.getLong());
+    }
+
+    byte[] toBytes() {
+        return ByteBuffer.allocate(SIZE).putLong(seq).putLong(originMillis).putLong(received)
+                         .putLong(dequeued).putLong(executed).putLong(stateStarted)
+                         .putLong(stateProduced).putLong(broadcast).putLong(written).array();
+    }
+
+    /**
+     * @return nanoseconds between two stamps, or -1 if either wasn't taken
+     */
+    public static long between(long from, long to) {
+        return from < 0 || to < 0 ? -1 : to - from;
+    }
+
+    @Override
+    public String toString() {
+        return "StepTiming{" +
+                "seq=" + seq +
+                ", readQueue=" + micros(between(received, dequeued)) +
+                ", execute=" + micros(between(dequeued, executed)) +
+                ", settle=" + micros(between(executed, stateStarted)) +
+                ", serialize=" + micros(between(stateStarted, stateProduced)) +
+                ", writeQueue=" + micros(between(stateProduced, broadcast)) +
+                ", encode=" + micros(between(broadcast, written)) +
+                '}';
+    }
+
+    private static String micros(long nanos) {
+        return nanos < 0 ? "?" : nanos / 1000 + "us";
+    }
+}
@@ -0,0 +1,45 @@
+package transport;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads the transports block in. This is the Java 8 version, with platform
+ * threads; on Java 21 and later the multi-release jar replaces it with the one in
+ * src/main/java21, which uses virtual threads. Both must keep the same public methods.
+ *
+ * Code run on these threads shouldn't block while holding a monitor, since on Java 21 that pins
+ * the virtual thread to its carrier; use java.util.concurrent locks instead.
+ */
+public final class Threads {
+    private Threads() {
+    }
+
+    /**
+     * Starts a thread that lives as long as the game, such as a transport's read or write thread.
+     */
+    public static Thread start(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * An executor that runs every task on a thread of its own, for connections that block.
+     * Platform threads are reused once their task is done.
+     */
+    public static ExecutorService perTaskExecutor(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, name + " " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static boolean areVirtual() {
+        return false;
+    }
+}
@@ -38,7 +38,7 @@ public class BossRewardVoteController implements VoteController {
                         choice.voteString,
                         voteFrequencies.getOrDefault(choice.voteString, 0));
 
-                renderTextBelowHitbox(spriteBatch, rewardItemMessage, rewardItemHitbox);
+                renderTextBelowHitbox(spriteBatch, choice, rewardItemMessage, rewardItemHitbox);
             } else {
                 System.err.println("no boss relic button for " + choice.choiceName);
             }
@@ -43,7 +43,7 @@ public class CardRewardVoteController implements VoteController {
                 SkipCardButton skipCardButton = ReflectionHacks
                         .getPrivate(AbstractDungeon.cardRewardScreen, CardRewardScreen.class, "skipButton");
 
-                renderTextBelowHitbox(spriteBatch, skipMessage, cardRewardAdjust(skipCardButton.hb));
+                renderTextBelowHitbox(spriteBatch, choice, skipMessage, cardRewardAdjust(skipCardButton.hb));
             } else if (message.equalsIgnoreCase("bowl")) {
                 String bowlMessage = String.format("[vote %s] (%s)",
                         choice.voteString,
@@ -52,7 +52,7 @@ public class CardRewardVoteController implements VoteController {
                 SingingBowlButton bowlButton = ReflectionHacks
                         .getPrivate(AbstractDungeon.cardRewardScreen, CardRewardScreen.class, "bowlButton");
 
-                renderTextBelowHitbox(spriteBatch, bowlMessage, cardRewardAdjust(bowlButton.hb));
+                renderTextBelowHitbox(spriteBatch, choice, bowlMessage, cardRewardAdjust(bowlButton.hb));
             } else if (messageToCardReward.containsKey(message)) {
                 AbstractCard card = messageToCardReward.get(message);
                 Hitbox cardHitbox = card.hb;
@@ -60,7 +60,7 @@ public class CardRewardVoteController implements VoteController {
                         choice.voteString,
                         voteFrequencies.getOrDefault(choice.voteString, 0));
 
-                renderTextBelowHitbox(spriteBatch, cardMessage, cardRewardAdjust(cardHitbox));
+                renderTextBelowHitbox(spriteBatch, choice, cardMessage, cardRewardAdjust(cardHitbox));
             } else {
                 System.err.println("no card button for " + choice.choiceName);
             }
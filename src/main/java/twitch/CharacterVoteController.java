@@ -44,7 +44,7 @@ public class CharacterVoteController implements VoteController {
                     voteFrequencies.getOrDefault(choice.voteString, 0));
 
             Hitbox hitbox = new Hitbox(300 + 225 * i, 50, 200, 200);
-            renderTextBelowHitbox(spriteBatch, voteMessage, hitbox);
+            renderTextBelowHitbox(spriteBatch, choice, voteMessage, hitbox);
         }
     }
 }
@@ -41,7 +41,7 @@ public class GridVoteController implements VoteController {
                         choice.voteString,
                         voteFrequencies.getOrDefault(choice.voteString, 0));
 
-                renderTextBelowHitbox(spriteBatch, voteMessage, hitbox);
+                renderTextBelowHitbox(spriteBatch, choice, voteMessage, hitbox);
             } else {
                 System.err.println("no event button for " + choice.choiceName);
             }
@@ -41,9 +41,9 @@ public class MapVoteController implements VoteController {
                 // Alternate having the vote above and below so that the messages don't
                 // run into each other
                 if (i % 2 == 0) {
-                    RenderHelpers.renderTextBelowHitbox(spriteBatch, mapMessage, roomHitbox);
+                    RenderHelpers.renderTextBelowHitbox(spriteBatch, choice, mapMessage, roomHitbox);
                 } else {
-                    RenderHelpers.renderTextAboveHitbox(spriteBatch, mapMessage, roomHitbox);
+                    RenderHelpers.renderTextAboveHitbox(spriteBatch, choice, mapMessage, roomHitbox);
                 }
             } else {
                 System.err.println("no room button for " + choice.choiceName);
@@ -6,8 +6,19 @@ import com.badlogic.gdx.graphics.g2d.SpriteBatch;
 import com.megacrit.cardcrawl.helpers.FontHelper;
 import com.megacrit.cardcrawl.helpers.Hitbox;
 
+import java.util.ArrayList;
+
 public class RenderHelpers {
-    static void renderTextBelowHitbox(SpriteBatch spriteBatch, String text, Hitbox hitbox) {
+    // While set, vote labels are collected here for the overlay instead of being laid out and
+    // drawn on the game's render thread
+    static ArrayList<VoteOverlay.Label> capture = null;
+
+    static void renderTextBelowHitbox(SpriteBatch spriteBatch, TwitchController.Choice choice, String text, Hitbox hitbox) {
+        if (capture != null) {
+            capture.add(new VoteOverlay.Label(choice.voteString, hitbox.x + hitbox.width / 2, hitbox.y, true));
+            return;
+        }
+
         BitmapFont font = FontHelper.buttonLabelFont;
         Color color = Color.RED;
         float textWidth = FontHelper.getWidth(font, text, 1f);
@@ -16,7 +27,12 @@ public class RenderHelpers {
         FontHelper.renderFont(spriteBatch, font, text, messageX, hitbox.y, color);
     }
 
-    static void renderTextAboveHitbox(SpriteBatch spriteBatch, String text, Hitbox hitbox) {
+    static void renderTextAboveHitbox(SpriteBatch spriteBatch, TwitchController.Choice choice, String text, Hitbox hitbox) {
+        if (capture != null) {
+            capture.add(new VoteOverlay.Label(choice.voteString, hitbox.x + hitbox.width / 2, hitbox.y + hitbox.height, false));
+            return;
+        }
+
         BitmapFont font = FontHelper.buttonLabelFont;
         Color color = Color.RED;
         float textWidth = FontHelper.getWidth(font, text, 1f);
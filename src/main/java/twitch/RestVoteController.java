@@ -44,7 +44,7 @@ public class RestVoteController implements VoteController {
                         choice.voteString,
                         voteFrequencies.getOrDefault(choice.voteString, 0));
 
-                renderTextBelowHitbox(spriteBatch, voteMessage, adjustSelectionHitbox(hitbox));
+                renderTextBelowHitbox(spriteBatch, choice, voteMessage, adjustSelectionHitbox(hitbox));
             } else {
                 System.err.println("no boss relic button for " + choice.choiceName);
             }
@@ -42,14 +42,14 @@ public class ShopScreenVoteController implements VoteController {
                         voteFrequencies.getOrDefault(choice.voteString, 0));
 
                 RenderHelpers
-                        .renderTextBelowHitbox(spriteBatch, leaveMessage, AbstractDungeon.overlayMenu.cancelButton.hb);
+                        .renderTextBelowHitbox(spriteBatch, choice, leaveMessage, AbstractDungeon.overlayMenu.cancelButton.hb);
             } else if (message.equals("purge")) {
                 String purgeMessage = String.format("[vote %s] (%s)",
                         choice.voteString,
                         voteFrequencies.getOrDefault(choice.voteString, 0));
 
                 RenderHelpers
-                        .renderTextBelowHitbox(spriteBatch, purgeMessage, addGoldHitbox(getShopPurgeHitbox(), 1));
+                        .renderTextBelowHitbox(spriteBatch, choice, purgeMessage, addGoldHitbox(getShopPurgeHitbox(), 1));
             } else if (messageToShopItemMap.containsKey(message)) {
                 Hitbox shopItemHitbox = getShopItemHitbox(messageToShopItemMap
                         .get(message));
@@ -60,7 +60,7 @@ public class ShopScreenVoteController implements VoteController {
                             choice.voteString,
                             voteFrequencies.getOrDefault(choice.voteString, 0));
 
-                    RenderHelpers.renderTextBelowHitbox(spriteBatch, shopMessage, shopItemHitbox);
+                    RenderHelpers.renderTextBelowHitbox(spriteBatch, choice, shopMessage, shopItemHitbox);
                 } else {
                     System.err.println("no hitbox for" + choice.choiceName);
                 }
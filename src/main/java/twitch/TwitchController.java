@@ -34,7 +34,6 @@ import ludicrousspeed.LudicrousSpeedMod;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.stream.Collectors;
 
 public class TwitchController implements PostUpdateSubscriber, PostRenderSubscriber {
@@ -83,8 +82,9 @@ public class TwitchController implements PostUpdateSubscriber, PostRenderSubscri
     ArrayList<Choice> viableChoices;
     private HashMap<String, Choice> choicesMap;
 
-    private final LinkedBlockingQueue<String> readQueue;
+    private final BlockingQueue<String> readQueue;
     private final Twirk twirk;
+    private VoteOverlay overlay = null;
 
     private boolean shouldStartClientOnUpdate = false;
     private boolean inBattle = false;
@@ -94,7 +94,7 @@ public class TwitchController implements PostUpdateSubscriber, PostRenderSubscri
     public static long lastDeckDisplayTimestamp = 0L;
     public static long lastBossDisplayTimestamp = 0L;
 
-    public TwitchController(LinkedBlockingQueue<String> readQueue, Twirk twirk) {
+    public TwitchController(BlockingQueue<String> readQueue, Twirk twirk) {
         this.readQueue = readQueue;
         this.twirk = twirk;
 
@@ -106,6 +106,10 @@ public class TwitchController implements PostUpdateSubscriber, PostRenderSubscri
         }
     }
 
+    public void setOverlay(VoteOverlay overlay) {
+        this.overlay = overlay;
+    }
+
     @Override
     public void receivePostUpdate() {
         if (shouldStartClientOnUpdate) {
@@ -447,8 +451,15 @@ public class TwitchController implements PostUpdateSubscriber, PostRenderSubscri
 
     @Override
     public void receivePostRender(SpriteBatch spriteBatch) {
+        boolean voteShown = voteByUsernameMap != null && viableChoices != null && viableChoices
+                .size() > 1;
+        if (overlay != null && overlay.isWatched()) {
+            renderForOverlay(spriteBatch, voteShown);
+            return;
+        }
+
         String topMessage = "";
-        if (voteByUsernameMap != null && viableChoices != null && viableChoices.size() > 1) {
+        if (voteShown) {
             if (voteController != null) {
                 voteController.render(spriteBatch);
             } else {
@@ -478,6 +489,28 @@ public class TwitchController implements PostUpdateSubscriber, PostRenderSubscri
         }
     }
 
+    /**
+     * The browser source draws the labels, the timer and the choice list, only what the vote
+     * controllers change in the game's own UI is still done here.
+     */
+    private void renderForOverlay(SpriteBatch spriteBatch, boolean voteShown) {
+        if (!voteShown) {
+            overlay.update(null, 0, fastMode, false, null, null, null);
+            return;
+        }
+
+        ArrayList<VoteOverlay.Label> labels = new ArrayList<>();
+        if (voteController != null) {
+            RenderHelpers.capture = labels;
+            try {
+                voteController.render(spriteBatch);
+            } finally {
+                RenderHelpers.capture = null;
+            }
+        }
+        overlay.update(currentVote, voteEndTimeMillis, fastMode, voteController == null, viableChoices, getVoteFrequencies(), labels);
+    }
+
     private String buildDisplayString() {
         String result = "";
         HashMap<String, Integer> voteFrequencies = getVoteFrequencies();
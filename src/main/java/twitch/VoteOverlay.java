@@ -0,0 +1,225 @@
+package twitch;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.megacrit.cardcrawl.core.Settings;
+import transport.LocalHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Feeds a browser source overlay with the current vote so OBS can draw it on top of the game
+ * instead of the game drawing it every frame.
+ *
+ * The page at / connects to /events, a WebSocket that pushes small JSON events whenever
+ * something changes:
+ * <pre>
+ *   {"event":"vote","vote_type":"map_short","ends_at":..,"now":..,"demo":false,"list":false,
+ *    "width":1920,"height":1080,"choices":[{"vote":"1","name":"x=3","x":..,"y":..,"below":true}]}
+ *   {"event":"tally","votes":{"1":3,"2":1}}
+ *   {"event":"end","demo":false}
+ * </pre>
+ * Times are the game's wall clock in millis, positions are in game screen coordinates with the
+ * origin at the bottom left. Choices without a position are labeled by the game itself or, when
+ * list is set, shown as a list.
+ */
+public class VoteOverlay {
+    public static final String PAGE_RESOURCE = "vote_overlay.html";
+
+    // Labels follow moving cards and map nodes, but not at the full frame rate
+    private static final long MIN_MOVE_INTERVAL_MILLIS = 100;
+
+    private final LocalHttpServer.WebSocketEndpoint events;
+
+    // Render thread only, apart from the greeting reading the last events
+    private String voteKey = null;
+    private List<Label> labels = null;
+    private Map<String, Integer> tallies = null;
+    private boolean demo = false;
+    private boolean moved = false;
+    private long lastVoteEventMillis = 0;
+    private volatile String lastVoteEvent = null;
+    private volatile String lastTallyEvent = null;
+
+    public VoteOverlay(LocalHttpServer server) {
+        byte[] page = readPage();
+        server.route("/", request -> new LocalHttpServer.Response(200, "text/html; charset=utf-8", page));
+        events = server.webSocket("/events", () -> {
+            ArrayList<String> greeting = new ArrayList<>();
+            String vote = lastVoteEvent;
+            String tally = lastTallyEvent;
+            if (vote != null) {
+                greeting.add(vote);
+            }
+            if (tally != null) {
+                greeting.add(tally);
+            }
+            return greeting;
+        });
+    }
+
+    /**
+     * Whether a browser is attached; until one is the game keeps drawing the vote itself.
+     */
+    public boolean isWatched() {
+        return events.getClientCount() > 0;
+    }
+
+    /**
+     * Called every frame on the render thread while watched.
+     *
+     * @param voteType null when no vote is shown
+     */
+    void update(TwitchController.VoteType voteType, long endsAt, boolean demo, boolean list, List<TwitchController.Choice> choices, Map<String, Integer> tallies, List<Label> labels) {
+        long now = System.currentTimeMillis();
+
+        if (voteType == null) {
+            if (voteKey != null || this.demo != demo || lastVoteEvent == null) {
+                voteKey = null;
+                this.labels = null;
+                this.tallies = null;
+                this.demo = demo;
+
+                JsonObject end = new JsonObject();
+                end.addProperty("event", "end");
+                end.addProperty("demo", demo);
+                send(end.toString(), null);
+            }
+            return;
+        }
+
+        String key = voteType.optionName + "@" + endsAt + "/" + choices.size() + "/" + demo;
+        boolean newVote = !key.equals(voteKey);
+        if (!newVote && !labels.equals(this.labels)) {
+            moved = true;
+        }
+
+        if (newVote || (moved && now - lastVoteEventMillis >= MIN_MOVE_INTERVAL_MILLIS)) {
+            voteKey = key;
+            this.labels = labels;
+            this.demo = demo;
+            this.tallies = null;
+            moved = false;
+            lastVoteEventMillis = now;
+            send(voteEvent(voteType, endsAt, demo, list, choices, labels, now), null);
+        }
+
+        if (!tallies.equals(this.tallies)) {
+            this.tallies = tallies;
+            JsonObject votes = new JsonObject();
+            for (Map.Entry<String, Integer> tally : tallies.entrySet()) {
+                votes.addProperty(tally.getKey(), tally.getValue());
+            }
+            JsonObject event = new JsonObject();
+            event.addProperty("event", "tally");
+            event.add("votes", votes);
+            send(null, event.toString());
+        }
+    }
+
+    private void send(String voteEvent, String tallyEvent) {
+        if (voteEvent != null) {
+            lastVoteEvent = voteEvent;
+            lastTallyEvent = null;
+            events.send(voteEvent);
+        }
+        if (tallyEvent != null) {
+            lastTallyEvent = tallyEvent;
+            events.send(tallyEvent);
+        }
+    }
+
+    private static String voteEvent(TwitchController.VoteType voteType, long endsAt, boolean demo, boolean list, List<TwitchController.Choice> choices, List<Label> labels, long now) {
+        HashMap<String, Label> labelByVote = new HashMap<>();
+        for (Label label : labels) {
+            labelByVote.putIfAbsent(label.vote, label);
+        }
+
+        JsonArray choiceArray = new JsonArray();
+        for (TwitchController.Choice choice : choices) {
+            JsonObject choiceJson = new JsonObject();
+            choiceJson.addProperty("vote", choice.voteString);
+            choiceJson.addProperty("name", choice.choiceName);
+            Label label = labelByVote.get(choice.voteString);
+            if (label != null) {
+                choiceJson.addProperty("x", label.x);
+                choiceJson.addProperty("y", label.y);
+                choiceJson.addProperty("below", label.below);
+            }
+            choiceArray.add(choiceJson);
+        }
+
+        JsonObject event = new JsonObject();
+        event.addProperty("event", "vote");
+        event.addProperty("vote_type", voteType.optionName);
+        event.addProperty("ends_at", endsAt);
+        event.addProperty("now", now);
+        event.addProperty("demo", demo);
+        event.addProperty("list", list);
+        event.addProperty("width", Settings.WIDTH);
+        event.addProperty("height", Settings.HEIGHT);
+        event.add("choices", choiceArray);
+        return event.toString();
+    }
+
+    private static byte[] readPage() {
+        try (InputStream in = VoteOverlay.class.getClassLoader()
+                                               .getResourceAsStream(PAGE_RESOURCE)) {
+            if (in == null) {
+                System.err.println("missing " + PAGE_RESOURCE + ", the overlay only serves events");
+                return new byte[0];
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8 * 1024];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, read);
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new byte[0];
+        }
+    }
+
+    /**
+     * Where a vote label goes: centered on x, hanging below y or standing on it.
+     */
+    static class Label {
+        final String vote;
+        final int x;
+        final int y;
+        final boolean below;
+
+        Label(String vote, float x, float y, boolean below) {
+            this.vote = vote;
+            this.x = Math.round(x);
+            this.y = Math.round(y);
+            this.below = below;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Label label = (Label) o;
+            return x == label.x && y == label.y && below == label.below && vote.equals(label.vote);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(vote, x, y, below);
+        }
+    }
+}
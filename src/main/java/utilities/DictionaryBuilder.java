@@ -0,0 +1,94 @@
+package utilities;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Rebuilds the preset compression dictionary, src/main/resources/state_dictionary.txt, from
+ * captured states, one JSON document per line as written by getCommunicationState().
+ *
+ * usage: DictionaryBuilder output.txt samples.jsonl [more samples...]
+ *
+ * The most frequent key/value fragments go last since zlib finds matches closest to the end of
+ * the dictionary most cheaply. Clients must be given the same file as the server.
+ */
+public class DictionaryBuilder {
+    private static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+    private static final int MIN_OCCURRENCES = 4;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: DictionaryBuilder output.txt samples.jsonl [more samples...]");
+            return;
+        }
+
+        HashMap<String, Integer> fragments = new HashMap<>();
+        JsonParser parser = new JsonParser();
+        for (int i = 1; i < args.length; i++) {
+            try (BufferedReader reader = Files
+                    .newBufferedReader(Paths.get(args[i]), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.trim().isEmpty()) {
+                        countFragments(parser.parse(line), fragments);
+                    }
+                }
+            }
+        }
+
+        ArrayList<Map.Entry<String, Integer>> sorted = new ArrayList<>(fragments.entrySet());
+        sorted.removeIf(entry -> entry.getValue() < MIN_OCCURRENCES);
+        // Most valuable first so that the cut keeps them, reversed again when written
+        sorted.sort((a, b) -> Long.compare((long) b.getValue() * b.getKey().length(), (long) a
+                .getValue() * a.getKey().length()));
+
+        ArrayList<String> kept = new ArrayList<>();
+        int size = 0;
+        for (Map.Entry<String, Integer> entry : sorted) {
+            int length = entry.getKey().getBytes(StandardCharsets.UTF_8).length;
+            if (size + length > MAX_DICTIONARY_SIZE) {
+                continue;
+            }
+            kept.add(entry.getKey());
+            size += length;
+        }
+
+        try (OutputStream out = Files.newOutputStream(Paths.get(args[0]))) {
+            for (int i = kept.size() - 1; i >= 0; i--) {
+                out.write(kept.get(i).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        System.err.format("wrote %d fragments, %d bytes\n", kept.size(), size);
+    }
+
+    private static void countFragments(JsonElement element, HashMap<String, Integer> fragments) {
+        if (element.isJsonArray()) {
+            element.getAsJsonArray().forEach(child -> countFragments(child, fragments));
+        } else if (element.isJsonObject()) {
+            JsonObject object = element.getAsJsonObject();
+            for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+                String key = new JsonPrimitive(entry.getKey()).toString() + ":";
+                JsonElement value = entry.getValue();
+                if (value.isJsonPrimitive() || value.isJsonNull()) {
+                    fragments.merge(key + value.toString(), 1, Integer::sum);
+                } else {
+                    fragments.merge(key, 1, Integer::sum);
+                    countFragments(value, fragments);
+                }
+            }
+        }
+    }
+}
@@ -1,43 +1,34 @@
 package utilities;
 
-import java.io.BufferedInputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import client.EventLoop;
+import client.GameClient;
+
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.util.Scanner;
 
+/**
+ * usage: SampleClient [port]
+ */
 public class SampleClient {
     private static final String HOST_IP = "127.0.0.1";
     private static final int PORT = 8080;
 
     public static void main(String[] args) {
         Scanner in = new Scanner(System.in);
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : PORT;
 
-        Socket socket = new Socket();
-        try {
-            socket.connect(new InetSocketAddress(HOST_IP, PORT));
-            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-
-            new Thread(() -> {
-                try {
-                    DataInputStream inStream = new DataInputStream(new BufferedInputStream(socket
-                            .getInputStream()));
-
-                    while(true) {
-                        System.out.println(inStream.readUTF());
-                    }
-
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }).start();
+        try (EventLoop loop = new EventLoop()) {
+            GameClient client = new GameClient(loop, new InetSocketAddress(HOST_IP, port));
+            client.subscribe(System.out::println);
+            client.connect().join();
 
             while (true) {
-                out.writeUTF(in.nextLine());
+                client.send(in.nextLine()).exceptionally(e -> {
+                    System.err.println(e.getMessage());
+                    return null;
+                });
             }
-
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,39 @@
+package utilities;
+
+import transport.SharedMemoryClient;
+import transport.SharedMemoryServer;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Scanner;
+
+/**
+ * usage: SharedMemorySampleClient [ring directory]
+ */
+public class SharedMemorySampleClient {
+    public static void main(String[] args) {
+        Scanner in = new Scanner(System.in);
+
+        try {
+            SharedMemoryClient client = SharedMemoryClient
+                    .connect(args.length > 0 ? Paths.get(args[0]) : SharedMemoryServer.defaultDirectory());
+
+            new Thread(() -> {
+                try {
+                    while (true) {
+                        System.out.println(client.receive());
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }).start();
+
+            while (true) {
+                client.send(in.nextLine());
+            }
+
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+}
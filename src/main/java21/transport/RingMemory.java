@@ -0,0 +1,56 @@
+package transport;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Java 21 version of the Java 8 class in src/main/java: the cursors are read with acquire and
+ * written with release VarHandle modes on the mapped buffer itself, which is all the ordering the
+ * ring needs, and messages are copied with the absolute bulk methods. The JVM picks this class
+ * from the multi-release jar on its own.
+ */
+final class RingMemory {
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final ByteBuffer buffer;
+
+    RingMemory(MappedByteBuffer mapped) {
+        buffer = mapped.order(ByteOrder.nativeOrder());
+    }
+
+    int getInt(int offset) {
+        return buffer.getInt(offset);
+    }
+
+    void putInt(int offset, int value) {
+        buffer.putInt(offset, value);
+    }
+
+    int getIntAcquire(int offset) {
+        return (int) INT.getAcquire(buffer, offset);
+    }
+
+    void putIntRelease(int offset, int value) {
+        INT.setRelease(buffer, offset, value);
+    }
+
+    long getLongAcquire(int offset) {
+        return (long) LONG.getAcquire(buffer, offset);
+    }
+
+    void putLongRelease(int offset, long value) {
+        LONG.setRelease(buffer, offset, value);
+    }
+
+    void read(int offset, byte[] destination) {
+        buffer.get(offset, destination);
+    }
+
+    void write(int offset, byte[] source) {
+        buffer.put(offset, source);
+    }
+}
@@ -0,0 +1,26 @@
+package transport;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Java 21 version of the Java 8 class in src/main/java: every thread is virtual, so a blocked
+ * connection or queue consumer costs a small heap object instead of a platform thread and its
+ * stack. The JVM picks this class from the multi-release jar on its own.
+ */
+public final class Threads {
+    private Threads() {
+    }
+
+    public static Thread start(String name, Runnable task) {
+        return Thread.ofVirtual().name(name).start(task);
+    }
+
+    public static ExecutorService perTaskExecutor(String name) {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + " ", 1).factory());
+    }
+
+    public static boolean areVirtual() {
+        return true;
+    }
+}